@@ -0,0 +1,113 @@
+package msp;
+
+import mindustry.ui.dialogs.BaseDialog;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default methods of {@link ISyncContext}, what a service gets when it implements only single bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextBenchmark {
+    /** Values per operation. */
+    public static final int COUNT = 16 * 1024;
+
+    @Param({ "4096", "4194304" })
+    public int fileSize;
+
+    /**
+     * Only the abstract methods, over an array.
+     */
+    private static class ArrayContext implements ISyncContext {
+        public final byte[] buf;
+        public int w = 0, r = 0;
+
+        public ArrayContext(final int capacity) { buf = new byte[capacity]; }
+
+        @Override public boolean isHost() { return false; }
+        @Override public boolean isStatic() { return false; }
+        @Override public BaseDialog getDialog() { return null; }
+
+        @Override public void write(final byte b) { buf[w++] = b; }
+        @Override public void write(final int b) { buf[w++] = (byte) b; }
+        @Override public void flush() {}
+
+        @Override public byte readByte() { return buf[r++]; }
+
+        @Override
+        public byte[] readBuf(final byte[] b, final int off, final int len) {
+            System.arraycopy(buf, r, b, off, len);
+            r += len;
+            return b;
+        }
+    }
+
+    private final String[] names = new String[COUNT];
+    private ArrayContext values, file;
+    private byte[] data;
+    private ByteArrayOutputStream received;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        for (int i = 0; i < COUNT; i++)
+            names[i] = "bench-" + i + ".msch";
+        values = new ArrayContext(COUNT * 64);
+        data = new byte[fileSize];
+        new Random(fileSize).nextBytes(data);
+        // LENGTH + [PART_LENGTH + PART]... + -1
+        file = new ArrayContext(fileSize + 12 + 4 * (fileSize / ISyncContext.CHUNK_SIZE + 1));
+        file.send(new ByteArrayInputStream(data), fileSize);
+        received = new ByteArrayOutputStream(fileSize);
+    }
+
+    @Benchmark
+    public void writeReadInts(final Blackhole bh) throws IOException {
+        values.w = values.r = 0;
+        for (int i = 0; i < COUNT; i++)
+            values.writeInt(i);
+        for (int i = 0; i < COUNT; i++)
+            bh.consume(values.readInt());
+    }
+
+    @Benchmark
+    public void writeReadLongs(final Blackhole bh) throws IOException {
+        values.w = values.r = 0;
+        for (int i = 0; i < COUNT; i++)
+            values.writeLong(i * 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < COUNT; i++)
+            bh.consume(values.readLong());
+    }
+
+    @Benchmark
+    public void writeReadStrings(final Blackhole bh) throws IOException {
+        values.w = values.r = 0;
+        for (final String n : names)
+            values.writeString(n);
+        for (int i = 0; i < COUNT; i++)
+            bh.consume(values.readString());
+    }
+
+    @Benchmark
+    public void sendFile() throws IOException {
+        file.w = 0;
+        file.send(new ByteArrayInputStream(data), fileSize);
+    }
+
+    @Benchmark
+    public void readFile() throws IOException {
+        file.r = 0;
+        received.reset();
+        file.readFile(received);
+    }
+}
\ No newline at end of file
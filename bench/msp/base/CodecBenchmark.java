@@ -0,0 +1,133 @@
+package msp.base;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LocalSyncService.OutputWriter} into a loopback socket drained by another thread,
+ * {@link LocalSyncService.InputReader} from memory, so each side is measured alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    /** Values per operation. */
+    public static final int COUNT = 64 * 1024;
+
+    private ServerSocketChannel server;
+    private Socket out;
+    private LocalSyncService.OutputWriter writer;
+    private final String[] names = new String[COUNT];
+    private final byte[] chunk = new byte[64 * 1024];
+
+    private ByteArrayInputStream ints, strings;
+    private LocalSyncService.InputReader intReader, stringReader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        for (int i = 0; i < COUNT; i++)
+            names[i] = "bench-" + i + ".msch";
+
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        out = SocketChannel.open(server.getLocalAddress()).socket();
+        final Socket in = server.accept().socket();
+        final Thread drain = new Thread(() -> {
+            final byte[] buf = new byte[64 * 1024];
+            try (final InputStream s = in.getInputStream()) {
+                while (s.read(buf) != -1);
+            } catch (final IOException ignored) {
+            }
+        }, "Bench-Drain");
+        drain.setDaemon(true);
+        drain.start();
+        writer = new LocalSyncService.OutputWriter(out);
+
+        // Encoded once with the writer's own format.
+        final ByteArrayOutputStream b = new ByteArrayOutputStream();
+        for (int i = 0; i < COUNT; i++) {
+            b.write(i >>> 24);
+            b.write(i >>> 16);
+            b.write(i >>> 8);
+            b.write(i);
+        }
+        ints = new ByteArrayInputStream(b.toByteArray());
+        b.reset();
+        for (final String n : names) {
+            b.write(n.length());
+            b.write(n.getBytes(StandardCharsets.UTF_8), 0, n.length());
+        }
+        strings = new ByteArrayInputStream(b.toByteArray());
+        intReader = new LocalSyncService.InputReader(ints);
+        stringReader = new LocalSyncService.InputReader(strings);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        // Their buffers go back to the pool.
+        writer.close();
+        intReader.close();
+        stringReader.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void writeInts() throws IOException {
+        for (int i = 0; i < COUNT; i++)
+            writer.writeInt(i);
+        writer.flush();
+    }
+
+    @Benchmark
+    public void writeLongs() throws IOException {
+        for (int i = 0; i < COUNT; i++)
+            writer.writeLong(i * 0x9E3779B97F4A7C15L);
+        writer.flush();
+    }
+
+    @Benchmark
+    public void writeStrings() throws IOException {
+        for (final String n : names)
+            writer.writeString(n);
+        writer.flush();
+    }
+
+    @Benchmark
+    public void writeChunks() throws IOException {
+        for (int i = 0; i < 64; i++)
+            writer.write(chunk, 0, chunk.length);
+        writer.flush();
+    }
+
+    /**
+     * Every operation reads the whole stream, so the reader's buffer is empty when it starts over.
+     */
+    @Benchmark
+    public void readInts(final Blackhole bh) throws IOException {
+        ints.reset();
+        for (int i = 0; i < COUNT; i++)
+            bh.consume(intReader.readInt());
+    }
+
+    @Benchmark
+    public void readStrings(final Blackhole bh) throws IOException {
+        strings.reset();
+        for (int i = 0; i < COUNT; i++)
+            bh.consume(stringReader.readString());
+    }
+}
\ No newline at end of file
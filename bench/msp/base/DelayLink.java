@@ -0,0 +1,120 @@
+package msp.base;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A loopback link with a one-way delay: connections to {@link #address()} are forwarded to the target,
+ * whatever one side writes reaches the other delay ms later. Only latency is added, not a bandwidth limit.
+ */
+public class DelayLink implements Closeable {
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static class Chunk {
+        public final long due;
+        public final ByteBuffer data;
+
+        public Chunk(final long due, final ByteBuffer data) {
+            this.due = due;
+            this.data = data;
+        }
+    }
+
+    private static final Chunk END = new Chunk(0, null);
+
+    private final SocketAddress target;
+    private final long delay;
+    private final ServerSocketChannel server;
+    private final ArrayList<SocketChannel> open = new ArrayList<>();
+
+    /**
+     * @param delay one-way, ms.
+     */
+    public DelayLink(final SocketAddress target, final int delay) throws IOException {
+        this.target = target;
+        this.delay = TimeUnit.MILLISECONDS.toNanos(delay);
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        thread(this::accept, "Bench-Link");
+    }
+
+    public SocketAddress address() throws IOException { return server.getLocalAddress(); }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        synchronized (open) {
+            for (final SocketChannel c : open)
+                c.close();
+            open.clear();
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final SocketChannel a = server.accept(), b = SocketChannel.open(target);
+                synchronized (open) {
+                    open.add(a);
+                    open.add(b);
+                }
+                // The delay is the link's, the link itself doesn't wait for more to send.
+                a.socket().setTcpNoDelay(true);
+                b.socket().setTcpNoDelay(true);
+                pump(a, b);
+                pump(b, a);
+            }
+        } catch (final IOException ignored) {
+            // Closed.
+        }
+    }
+
+    private void pump(final SocketChannel from, final SocketChannel to) {
+        final LinkedBlockingQueue<Chunk> q = new LinkedBlockingQueue<>();
+        thread(() -> {
+            try {
+                while (true) {
+                    final ByteBuffer b = ByteBuffer.allocate(CHUNK_SIZE);
+                    if (from.read(b) == -1)
+                        break;
+                    b.flip();
+                    q.add(new Chunk(System.nanoTime() + delay, b));
+                }
+            } catch (final IOException ignored) {
+            }
+            q.add(END);
+        }, "Bench-Link-Read");
+        thread(() -> {
+            try {
+                while (true) {
+                    final Chunk c = q.take();
+                    if (c == END)
+                        break;
+                    final long wait = c.due - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    while (c.data.hasRemaining())
+                        to.write(c.data);
+                }
+                // The other side sees the end after the data, like over a real link.
+                to.shutdownOutput();
+            } catch (final IOException | InterruptedException ignored) {
+            }
+        }, "Bench-Link-Write");
+    }
+
+    private static void thread(final Runnable r, final String name) {
+        final Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,100 @@
+package msp.base;
+
+import arc.files.Fi;
+import msp.FileIndex;
+import msp.ISyncData;
+import msp.SyncMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schematics and saves synced through a {@link LoopbackSyncService}: both sides in this process, no sockets in between.
+ * The host has the datasets, the client has nothing.
+ * <br>
+ * What the client received and allocated is reported next to the time, from the {@link LoopbackSyncService.Result}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoopbackBenchmark {
+    /** COUNT x SIZE */
+    @Param({ "100x1024", "10000x1024" })
+    public String schematics;
+
+    /** COUNT x SIZE */
+    @Param({ "4x4194304" })
+    public String saves;
+
+    /**
+     * Of the client, summed over its data.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Received {
+        public long kilobytes, files, allocatedKilobytes;
+
+        @Setup(Level.Iteration)
+        public void clear() { kilobytes = files = allocatedKilobytes = 0; }
+    }
+
+    private final LoopbackSyncService service = new LoopbackSyncService(new ArrayList<>());
+    private Stand.Library library;
+    private Fi root;
+    private FileIndex sourceSchematics, sourceSaves, targetSchematics, targetSaves;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        library = Stand.install();
+        root = new Fi(Files.createTempDirectory("msp-bench").toFile());
+        final String[] s = schematics.split("x"), v = saves.split("x");
+        Stand.schematics(root.child("source-schematics"), Integer.parseInt(s[0]), Integer.parseInt(s[1]));
+        Stand.saves(root.child("source-saves"), Integer.parseInt(v[0]), Integer.parseInt(v[1]));
+        // The host was synced before, its indexes are warm.
+        sourceSchematics = index("source-schematics", ".msch");
+        sourceSchematics.refresh();
+        sourceSaves = index("source-saves", ".msav");
+        sourceSaves.refresh();
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        targetSchematics = clear("target-schematics", ".msch");
+        targetSaves = clear("target-saves", ".msav");
+        library.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() { root.deleteDirectory(); }
+
+    @Benchmark
+    public void sync(final Received received) throws IOException {
+        final List<ISyncData> host = Arrays.asList(new SchematicsData(sourceSchematics), new SavesData(sourceSaves)),
+                client = Arrays.asList(new SchematicsData(targetSchematics), new SavesData(targetSaves));
+        final LoopbackSyncService.Result r = service.sync(host, client);
+        for (final SyncMetrics.Data d : r.client.data()) {
+            received.kilobytes += d.bytesIn.get() / 1024;
+            received.files += d.filesIn.get();
+            if (d.allocated.get() > 0)
+                received.allocatedKilobytes += d.allocated.get() / 1024;
+        }
+    }
+
+    private FileIndex clear(final String dir, final String extension) {
+        root.child(dir).deleteDirectory();
+        root.child(dir).mkdirs();
+        root.child("index-" + dir + ".bin").delete();
+        root.child("index-" + dir + ".journal").delete();
+        return index(dir, extension);
+    }
+
+    private FileIndex index(final String dir, final String extension) { return new FileIndex(root.child("index-" + dir + ".bin"), root.child(dir), extension); }
+}
\ No newline at end of file
@@ -0,0 +1,122 @@
+package msp.base;
+
+import arc.Core;
+import arc.files.Fi;
+import msp.FileIndex;
+import msp.SyncMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole {@link SchematicsData} exchange over loopback sockets: the host has the dataset, the client has nothing.
+ * <br>
+ * The client adds at most one schematic per millisecond, so 10k files take at least 10 s.
+ * Loopback has no latency to hide, the window only shows the cost per request here, see {@link WindowBenchmark} for round trips.
+ * After every exchange a second one checks that the client's library now equals the host's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SchematicsBenchmark {
+    /** COUNT x SIZE */
+    @Param({ "100x1024", "10000x1024", "16x4194304" })
+    public String dataset;
+
+    @Param({ "1", "16", "64" })
+    public int window;
+
+    private final UUID hostId = UUID.randomUUID(), clientId = UUID.randomUUID();
+    private Stand.Library library;
+    private Fi root, source, target;
+    private FileIndex sourceIndex, targetIndex;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        library = Stand.install();
+        root = new Fi(Files.createTempDirectory("msp-bench").toFile());
+        source = root.child("source");
+        target = root.child("target");
+        final String[] d = dataset.split("x");
+        Stand.schematics(source, Integer.parseInt(d[0]), Integer.parseInt(d[1]));
+        // The host was synced before, its index is warm.
+        sourceIndex = new FileIndex(root.child("index-source.bin"), source, ".msch");
+        sourceIndex.refresh();
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        target.deleteDirectory();
+        target.mkdirs();
+        root.child("index-target.bin").delete();
+        root.child("index-target.journal").delete();
+        targetIndex = new FileIndex(root.child("index-target.bin"), target, ".msch");
+        library.clear();
+        Core.settings.put(SchematicsData.WINDOW_KEY, window);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() { root.deleteDirectory(); }
+
+    @Benchmark
+    public void exchange() throws Exception { exchange(new SyncMetrics.Data("schematics")); }
+
+    /**
+     * Equal libraries stop after comparing their trees, nothing is transferred.
+     */
+    @TearDown(Level.Invocation)
+    public void verify() throws Exception {
+        final boolean[] transferred = new boolean[1];
+        exchange(new SyncMetrics.Data("schematics") {
+            @Override
+            public void phase(final int p) {
+                super.phase(p);
+                if (p == SyncMetrics.TRANSFER)
+                    transferred[0] = true;
+            }
+        });
+        if (transferred[0])
+            throw new IllegalStateException("The received library differs from the source");
+    }
+
+    private void exchange(final SyncMetrics.Data metrics) throws Exception {
+        try (final ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final IOException[] error = new IOException[1];
+            final Thread client = new Thread(() -> {
+                try (final Socket c = SocketChannel.open(server.getLocalAddress()).socket()) {
+                    exchange(c, new SchematicsData(targetIndex), false, hostId, metrics);
+                } catch (final IOException ex) {
+                    error[0] = ex;
+                }
+            }, "Bench-Client");
+            client.start();
+            try (final Socket h = server.accept().socket()) {
+                exchange(h, new SchematicsData(sourceIndex), true, clientId, new SyncMetrics.Data("schematics"));
+            }
+            client.join();
+            if (error[0] != null)
+                throw error[0];
+        }
+    }
+
+    private static void exchange(final Socket s, final SchematicsData data, final boolean host, final UUID peer, final SyncMetrics.Data metrics) throws IOException {
+        try (final LocalSyncService.OutputWriter w = new LocalSyncService.OutputWriter(s);
+             final LocalSyncService.InputReader r = new LocalSyncService.InputReader(s.getInputStream())) {
+            data.sync(new LocalSyncService.LSSCtx(host, r, w, null, null, peer) {
+                @Override public SyncMetrics.Data getMetrics() { return metrics; }
+            });
+        }
+    }
+}
\ No newline at end of file
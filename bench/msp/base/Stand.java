@@ -0,0 +1,139 @@
+package msp.base;
+
+import arc.Application;
+import arc.Core;
+import arc.Settings;
+import arc.files.Fi;
+import arc.struct.Seq;
+import arc.struct.StringMap;
+import arc.util.I18NBundle;
+import arc.util.Log;
+import mindustry.Vars;
+import mindustry.game.Schematic;
+import mindustry.game.Schematics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Stand-ins for the parts of the game a sync touches: a main thread behind {@code Core.app.post},
+ * settings, an empty bundle and a schematics library kept in memory.
+ */
+public class Stand {
+    /** A frame of the stand-in main thread, about what a fast desktop gets. */
+    public static final long FRAME_MILLIS = 4;
+
+    private static final LinkedBlockingQueue<Runnable> posted = new LinkedBlockingQueue<>();
+    private static Library library = null;
+
+    /**
+     * Saves added schematics under the current millisecond like the game does, removes without deleting files.
+     */
+    public static class Library extends Schematics {
+        private final Seq<Schematic> all = new Seq<>();
+
+        @Override
+        public void add(final Schematic s) {
+            all.add(s);
+            if (s.file == null)
+                return;
+            final Fi f = s.file.sibling(System.currentTimeMillis() + ".msch");
+            try {
+                Schematics.write(s, f);
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            s.file = f;
+        }
+
+        @Override public void remove(final Schematic s) { all.remove(s); }
+        @Override public Seq<Schematic> all() { return all; }
+
+        public void clear() { all.clear(); }
+    }
+
+    public static synchronized Library install() {
+        if (library != null)
+            return library;
+        // Only post is used and it's a desktop, everything else answers with a default.
+        Core.app = (Application) Proxy.newProxyInstance(Application.class.getClassLoader(), new Class<?>[] { Application.class }, (proxy, m, args) -> {
+            if (m.getName().equals("post")) {
+                posted.add((Runnable) args[0]);
+                return null;
+            }
+            final Class<?> t = m.getReturnType();
+            if (t == boolean.class)
+                return m.getName().equals("isDesktop");
+            if (t.isPrimitive() && t != void.class)
+                return t == long.class ? 0L : t == float.class ? 0f : t == double.class ? 0d : 0;
+            return null;
+        });
+        Core.settings = new Settings();
+        Core.bundle = I18NBundle.createEmptyBundle();
+        Vars.schematics = library = new Library();
+
+        final Thread main = new Thread(Stand::frames, "Bench-Main");
+        main.setDaemon(true);
+        main.start();
+        return library;
+    }
+
+    /**
+     * Runs what was posted before the frame started, like the game loop does.
+     */
+    private static void frames() {
+        final ArrayList<Runnable> frame = new ArrayList<>();
+        while (true) {
+            posted.drainTo(frame);
+            for (final Runnable r : frame)
+                try {
+                    r.run();
+                } catch (final Throwable e) {
+                    Log.err(e);
+                }
+            frame.clear();
+            try {
+                Thread.sleep(FRAME_MILLIS);
+            } catch (final InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes count empty schematics padded with random tags to about size bytes each, the same for every run.
+     */
+    public static void schematics(final Fi dir, final int count, final int size) throws IOException {
+        dir.mkdirs();
+        final Random random = new Random(count * 31L + size);
+        final char[] pad = new char[Math.min(size, 60000)];
+        for (int i = 0; i < count; i++) {
+            final StringMap tags = new StringMap();
+            tags.put("name", "bench-" + i);
+            // Letters deflate to about 60%, a tag holds at most 64K.
+            for (int left = size * 5 / 3, t = 0; left > 0 && t < 250; left -= pad.length, t++) {
+                for (int j = 0; j < pad.length; j++)
+                    pad[j] = (char) ('a' + random.nextInt(26));
+                tags.put("pad" + t, new String(pad, 0, Math.min(left, pad.length)));
+            }
+            Schematics.write(new Schematic(new Seq<>(), tags, 1, 1), dir.child("bench-" + i + ".msch"));
+        }
+    }
+
+    /**
+     * Writes count saves of random bytes, size bytes each, the same for every run. Syncs don't read what's inside.
+     */
+    public static void saves(final Fi dir, final int count, final int size) {
+        dir.mkdirs();
+        final Random random = new Random(count * 31L + size);
+        final byte[] data = new byte[size];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(data);
+            dir.child("bench-" + i + ".msav").writeBytes(data);
+        }
+    }
+}
\ No newline at end of file
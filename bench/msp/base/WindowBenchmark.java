@@ -0,0 +1,136 @@
+package msp.base;
+
+import arc.Core;
+import arc.files.Fi;
+import msp.FileIndex;
+import msp.SyncMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SchematicsData} exchange over a {@link DelayLink}, how much of the round trips the request window hides.
+ * <br>
+ * Only the transfer is timed, until the client has every file. The client adds at most one schematic per millisecond,
+ * the imports still queued then finish outside the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WindowBenchmark {
+    public static final int COUNT = 200, SIZE = 1024;
+
+    /** One-way, ms. */
+    @Param({ "5", "20" })
+    public int delay;
+
+    @Param({ "1", "16", "64" })
+    public int window;
+
+    private final UUID hostId = UUID.randomUUID(), clientId = UUID.randomUUID();
+    private final Exception[] errors = new Exception[2];
+    private Stand.Library library;
+    private Fi root, source, target;
+    private FileIndex sourceIndex, targetIndex;
+    private ServerSocketChannel server;
+    private DelayLink link;
+    private Thread host, client;
+    private CountDownLatch transferred;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        library = Stand.install();
+        root = new Fi(Files.createTempDirectory("msp-bench").toFile());
+        source = root.child("source");
+        target = root.child("target");
+        Stand.schematics(source, COUNT, SIZE);
+        sourceIndex = new FileIndex(root.child("index-source.bin"), source, ".msch");
+        sourceIndex.refresh();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        link = new DelayLink(server.getLocalAddress(), delay);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        target.deleteDirectory();
+        target.mkdirs();
+        root.child("index-target.bin").delete();
+        root.child("index-target.journal").delete();
+        targetIndex = new FileIndex(root.child("index-target.bin"), target, ".msch");
+        library.clear();
+        Core.settings.put(SchematicsData.WINDOW_KEY, window);
+        errors[0] = errors[1] = null;
+        transferred = new CountDownLatch(1);
+    }
+
+    @Benchmark
+    public void transfer() throws InterruptedException {
+        final CountDownLatch done = transferred;
+        // The client's transfer phase ends once it has every file.
+        final SyncMetrics.Data metrics = new SyncMetrics.Data("schematics") {
+            @Override
+            public void phase(final int p) {
+                super.phase(p);
+                if (p == SyncMetrics.APPLY)
+                    done.countDown();
+            }
+        };
+        host = new Thread(() -> {
+            try (final Socket h = server.accept().socket()) {
+                exchange(h, sourceIndex, true, clientId, new SyncMetrics.Data("schematics"));
+            } catch (final Exception ex) {
+                errors[0] = ex;
+            }
+        }, "Bench-Host");
+        client = new Thread(() -> {
+            try (final Socket c = SocketChannel.open(link.address()).socket()) {
+                exchange(c, targetIndex, false, hostId, metrics);
+            } catch (final Exception ex) {
+                errors[1] = ex;
+            } finally {
+                done.countDown();
+            }
+        }, "Bench-Client");
+        host.start();
+        client.start();
+        done.await();
+    }
+
+    @TearDown(Level.Invocation)
+    public void drain() throws Exception {
+        host.join();
+        client.join();
+        for (final Exception ex : errors)
+            if (ex != null)
+                throw ex;
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        link.close();
+        server.close();
+        root.deleteDirectory();
+    }
+
+    private static void exchange(final Socket s, final FileIndex index, final boolean host, final UUID peer, final SyncMetrics.Data metrics) throws IOException {
+        try (final LocalSyncService.OutputWriter w = new LocalSyncService.OutputWriter(s);
+             final LocalSyncService.InputReader r = new LocalSyncService.InputReader(s.getInputStream())) {
+            new SchematicsData(index).sync(new LocalSyncService.LSSCtx(host, r, w, null, null, peer) {
+                @Override public SyncMetrics.Data getMetrics() { return metrics; }
+            });
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,107 @@
+package msp;
+
+import arc.Core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Buffers shared by all connections, so a short or idle connection doesn't hold a big buffer of its own.
+ * <br>
+ * Sizes are powers of two from {@link #MIN_SIZE} to {@link #MAX_SIZE}. Taken and pooled buffers together stay under {@link #cap}:
+ * over it, pooled buffers are dropped first, then callers get smaller buffers than they asked for, down to {@link #MIN_SIZE}.
+ * <br>
+ * Every buffer taken must be given back once, by the thread that used it last.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 4 * 1024, MAX_SIZE = 1024 * 1024;
+    /** Direct buffers skip a copy in NIO, desktop only. */
+    public static final String DIRECT_KEY = "msp-direct-buffers";
+
+    /** An eighth of the heap, at most 64 MB. */
+    public static final BufferPool shared = new BufferPool(Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8));
+
+    public final long cap;
+    private final Bucket[] buckets = new Bucket[bucket(MAX_SIZE) + 1];
+    private long used = 0;
+
+    private static class Bucket {
+        public final ArrayDeque<byte[]> arrays = new ArrayDeque<>();
+        public final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    }
+
+    public BufferPool(final long cap) {
+        this.cap = cap;
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new Bucket();
+    }
+
+    /**
+     * @return at least {@link #MIN_SIZE} bytes, less than size if the pool is full.
+     */
+    public synchronized byte[] take(final int size) {
+        for (int b = bucket(size);; b--) {
+            final byte[] a = buckets[b].arrays.poll();
+            if (a != null)
+                return a;
+            if (reserve(MIN_SIZE << b))
+                return new byte[MIN_SIZE << b];
+        }
+    }
+
+    /**
+     * Direct if it's enabled, cleared.
+     */
+    public synchronized ByteBuffer takeBuffer(final int size) {
+        for (int b = bucket(size);; b--) {
+            final ByteBuffer a = buckets[b].buffers.poll();
+            if (a != null)
+                return a;
+            if (reserve(MIN_SIZE << b))
+                return direct() ? ByteBuffer.allocateDirect(MIN_SIZE << b) : ByteBuffer.allocate(MIN_SIZE << b);
+        }
+    }
+
+    public synchronized void give(final byte[] buf) { buckets[bucket(buf.length)].arrays.add(buf); }
+
+    public synchronized void give(final ByteBuffer buf) {
+        buf.clear();
+        buckets[bucket(buf.capacity())].buffers.add(buf);
+    }
+
+    /** Taken and pooled bytes. */
+    public synchronized long used() { return used; }
+
+    /**
+     * The smallest buffer is always allocated, even over the cap.
+     */
+    private boolean reserve(final int bytes) {
+        while (used + bytes > cap && evict());
+        if (used + bytes > cap && bytes > MIN_SIZE)
+            return false;
+        used += bytes;
+        return true;
+    }
+
+    private boolean evict() {
+        for (int b = buckets.length - 1; b >= 0; b--) {
+            final Bucket k = buckets[b];
+            if (k.arrays.poll() == null && k.buffers.poll() == null)
+                continue;
+            used -= MIN_SIZE << b;
+            return true;
+        }
+        return false;
+    }
+
+    private static int bucket(final int size) {
+        int b = 0;
+        while ((MIN_SIZE << b) < size && (MIN_SIZE << b) < MAX_SIZE)
+            b++;
+        return b;
+    }
+
+    private static boolean direct() {
+        return Core.app != null && Core.app.isDesktop() && Core.settings != null && Core.settings.getBool(DIRECT_KEY, true);
+    }
+}
\ No newline at end of file
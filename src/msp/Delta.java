@@ -0,0 +1,265 @@
+package msp;
+
+import arc.files.Fi;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * rsync style transfer of a changed file: the side with an old copy sends checksums of its blocks,
+ * the other side answers with the blocks it found in its copy and literal bytes for everything else.
+ * <br>
+ * Signature: BLOCK_SIZE (4) + COUNT (4) + [WEAK (4) + STRONG (16)]...
+ * <br>
+ * Delta: [COPY (1) + BLOCK (4) | LITERAL (1) + LENGTH (4) + DATA]... + END (1) + HASH (16)
+ */
+public class Delta {
+    public static final byte END = 0, COPY = 1, LITERAL = 2;
+    public static final int MIN_BLOCK = 2048, MAX_BLOCK = 64 * 1024;
+
+    public static class Signature {
+        public final int blockSize, count;
+        public final byte[] strong;
+        /** The last block with a weak checksum, and the previous block with the same one. */
+        private final HashMap<Integer, Integer> heads = new HashMap<>();
+        private final int[] next;
+
+        public Signature(final int blockSize, final int count) {
+            this.blockSize = blockSize;
+            this.count = count;
+            strong = new byte[count * FileIndex.HASH_SIZE];
+            next = new int[count];
+        }
+
+        private void put(final int i, final int weak) {
+            final Integer h = heads.put(weak, i);
+            next[i] = h == null ? -1 : h;
+        }
+
+        /**
+         * @return the index of a block with both checksums, or -1.
+         */
+        private int find(final int weak, final byte[] buf, final int off, final MessageDigest md) {
+            final Integer h = heads.get(weak);
+            if (h == null)
+                return -1;
+            md.update(buf, off, blockSize);
+            final byte[] d = md.digest();
+            for (int i = h; i != -1; i = next[i]) {
+                final int o = i * FileIndex.HASH_SIZE;
+                boolean eq = true;
+                for (int j = 0; j < d.length && eq; j++)
+                    eq = d[j] == strong[o + j];
+                if (eq)
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * About the square root of the length, so signature and delta overhead stay balanced.
+     */
+    public static int blockSize(final long length) {
+        final int s = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(length)));
+        return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, s));
+    }
+
+    /**
+     * Rolls in O(1): a = sum of bytes, b = sum of (length - i) * byte.
+     */
+    public static int weak(final int a, final int b) { return (a & 0xFFFF) | (b << 16); }
+
+    /**
+     * Sends the signature of the old copy.
+     * @return the block size, {@link #receive(ISyncContext, Fi, Fi, int)} needs it.
+     */
+    public static int writeSignature(final ISyncContext c, final Fi base) throws IOException {
+        final long length = base.length();
+        final int bs = blockSize(length);
+        final long count = length / bs;
+        if (count > Integer.MAX_VALUE / FileIndex.HASH_SIZE)
+            throw new IOException("File is too big: " + length);
+        c.writeInt(bs);
+        c.writeInt((int) count);
+
+        final MessageDigest md = FileIndex.md5();
+        final byte[] buf = new byte[bs];
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(base.read(), ISyncContext.CHUNK_SIZE))) {
+            for (long i = 0; i < count; i++) {
+                in.readFully(buf);
+                int a = 0, b = 0;
+                for (int j = 0; j < bs; j++) {
+                    a += buf[j] & 0xFF;
+                    b += (bs - j) * (buf[j] & 0xFF);
+                }
+                c.writeInt(weak(a, b));
+                md.update(buf, 0, bs);
+                c.write(md.digest());
+            }
+        }
+        c.flush();
+        return bs;
+    }
+
+    public static Signature readSignature(final ISyncContext c) throws IOException {
+        final int bs = c.readInt(), count = c.readInt();
+        if (bs < 1 || bs > MAX_BLOCK || count < 0 || count > Integer.MAX_VALUE / FileIndex.HASH_SIZE)
+            throw new IOException("Wrong signature: " + count + " x " + bs);
+        final Signature s = new Signature(bs, count);
+        for (int i = 0; i < count; i++) {
+            final int weak = c.readInt();
+            c.readFully(s.strong, i * FileIndex.HASH_SIZE, FileIndex.HASH_SIZE);
+            s.put(i, weak);
+        }
+        return s;
+    }
+
+    /**
+     * Streams the file once, the window rolls a byte at a time until it matches a block of the old copy.
+     */
+    public static void send(final ISyncContext c, final Signature sig, final Fi file) throws IOException {
+        final int bs = sig.blockSize;
+        final MessageDigest md = FileIndex.md5();
+        try (final InputStream in = file.read()) {
+            final Window w = new Window(c, in, new byte[bs + ISyncContext.CHUNK_SIZE]);
+            int a = 0, b = 0;
+            boolean rolling = false;
+            while (sig.count > 0 && w.ensure(bs)) {
+                final byte[] buf = w.buf;
+                if (!rolling) {
+                    a = b = 0;
+                    for (int j = 0; j < bs; j++) {
+                        a += buf[w.start + j] & 0xFF;
+                        b += (bs - j) * (buf[w.start + j] & 0xFF);
+                    }
+                    rolling = true;
+                }
+                final int m = sig.find(weak(a, b), buf, w.start, md);
+                if (m != -1) {
+                    w.literal(w.start);
+                    c.write(COPY);
+                    c.writeInt(m);
+                    w.start += bs;
+                    w.lit = w.start;
+                    rolling = false;
+                    continue;
+                }
+                if (!w.ensure(bs + 1))
+                    break;
+                final int out = w.buf[w.start] & 0xFF;
+                a += (w.buf[w.start + bs] & 0xFF) - out;
+                b += a - bs * out;
+                w.start++;
+            }
+            // What's left can't hold a whole block.
+            w.drain();
+            c.write(END);
+            c.write(w.hash.digest());
+            c.flush();
+        }
+    }
+
+    /**
+     * Rebuilds the file from the old copy and the delta.
+     * @return false if the result doesn't match the sender's hash, the target should be thrown away then.
+     */
+    public static boolean receive(final ISyncContext c, final Fi base, final Fi target, final int blockSize) throws IOException {
+        final MessageDigest hash = FileIndex.md5();
+        final byte[] buf = new byte[Math.max(blockSize, ISyncContext.CHUNK_SIZE)];
+        try (final RandomAccessFile src = new RandomAccessFile(base.file(), "r"); final OutputStream o = target.write(false)) {
+            byte op;
+            while ((op = c.readByte()) != END) {
+                if (op == COPY) {
+                    src.seek((long) c.readInt() * blockSize);
+                    src.readFully(buf, 0, blockSize);
+                    o.write(buf, 0, blockSize);
+                    hash.update(buf, 0, blockSize);
+                } else if (op == LITERAL) {
+                    int l = c.readInt();
+                    if (l < 0)
+                        throw new IOException("Negative literal length: " + l);
+                    while (l > 0) {
+                        final int n = Math.min(l, buf.length);
+                        c.readFully(buf, 0, n);
+                        o.write(buf, 0, n);
+                        hash.update(buf, 0, n);
+                        l -= n;
+                    }
+                } else
+                    throw new IOException("Unknown delta code: " + op);
+            }
+        }
+        return Arrays.equals(hash.digest(), c.readBuf(FileIndex.HASH_SIZE));
+    }
+
+    /**
+     * A sliding view of the file, bytes between {@link #lit} and {@link #start} weren't matched and go as literals.
+     */
+    private static class Window {
+        public final ISyncContext c;
+        public final InputStream in;
+        public final byte[] buf;
+        public final MessageDigest hash;
+        public int start = 0, end = 0, lit = 0;
+        private boolean eof = false;
+
+        public Window(final ISyncContext c, final InputStream in, final byte[] buf) throws IOException {
+            this.c = c;
+            this.in = in;
+            this.buf = buf;
+            hash = FileIndex.md5();
+        }
+
+        /**
+         * Makes n bytes available after start, moving the window to the front of the buffer when needed.
+         * @return false if the file ends first.
+         */
+        public boolean ensure(final int n) throws IOException {
+            while (end - start < n) {
+                if (eof)
+                    return false;
+                if (buf.length - start < n) {
+                    literal(start);
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = lit = 0;
+                }
+                final int r = in.read(buf, end, buf.length - end);
+                if (r == -1) {
+                    eof = true;
+                    continue;
+                }
+                hash.update(buf, end, r);
+                end += r;
+            }
+            return true;
+        }
+
+        public void drain() throws IOException {
+            while (!eof) {
+                literal(end);
+                start = end = lit = 0;
+                final int r = in.read(buf, 0, buf.length);
+                if (r == -1)
+                    eof = true;
+                else {
+                    hash.update(buf, 0, r);
+                    end = r;
+                }
+            }
+            literal(end);
+        }
+
+        public void literal(final int to) throws IOException {
+            if (to > lit) {
+                c.write(LITERAL);
+                c.writeInt(to - lit);
+                c.write(buf, lit, to - lit);
+            }
+            lit = to;
+        }
+    }
+}
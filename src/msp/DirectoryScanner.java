@@ -0,0 +1,124 @@
+package msp;
+
+import arc.Core;
+import arc.files.Fi;
+import arc.func.Cons;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stats and hashes files in parallel on a shared fork/join pool, results reach the caller as they are ready.
+ * <br>
+ * The pool leaves a core to the render thread, on phones it takes half of them at a low priority.
+ */
+public class DirectoryScanner {
+    /** Files per leaf task. */
+    public static final int LEAF = 8;
+
+    public static final ForkJoinPool pool;
+
+    static {
+        final boolean desktop = Core.app == null || Core.app.isDesktop();
+        final int cores = Runtime.getRuntime().availableProcessors();
+        pool = new ForkJoinPool(Math.max(1, desktop ? cores - 1 : cores / 2), p -> {
+            final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("MSP-Scan-" + t.getPoolIndex());
+            t.setDaemon(true);
+            if (!desktop)
+                t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }, null, false);
+    }
+
+    /** Marks the end of the results. */
+    private static final Object END = new Object();
+
+    /**
+     * Files that are directories or don't end with the extension are skipped,
+     * files with the size and last modified time of their known entry aren't hashed again.
+     * <br>
+     * Blocks until every file is done.
+     * @param out gets an entry per file on the calling thread, unchanged files get their known entry itself.
+     */
+    public static void scan(final Fi[] files, final String extension, final Map<String, FileIndex.Entry> known,
+                            final Cons<FileIndex.Entry> out) throws IOException {
+        final LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        pool.execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    new Scan(files, 0, files.length, extension, known, results).invoke();
+                } catch (final Throwable ex) {
+                    results.add(ex);
+                } finally {
+                    results.add(END);
+                }
+            }
+        });
+
+        try {
+            while (true) {
+                final Object r = results.take();
+                if (r == END)
+                    return;
+                if (r instanceof IOException)
+                    throw (IOException) r;
+                if (r instanceof Throwable)
+                    throw new IOException((Throwable) r);
+                out.get((FileIndex.Entry) r);
+            }
+        } catch (final InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static class Scan extends RecursiveAction {
+        private final Fi[] files;
+        private final int from, to;
+        private final String extension;
+        private final Map<String, FileIndex.Entry> known;
+        private final LinkedBlockingQueue<Object> results;
+
+        public Scan(final Fi[] files, final int from, final int to, final String extension, final Map<String, FileIndex.Entry> known,
+                    final LinkedBlockingQueue<Object> results) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.extension = extension;
+            this.known = known;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF) {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new Scan(files, from, mid, extension, known, results), new Scan(files, mid, to, extension, known, results));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                final Fi f = files[i];
+                final String n = f.name();
+                if (!n.endsWith(extension) || f.isDirectory())
+                    continue;
+                final long size = f.length(), lastModified = f.lastModified();
+                final FileIndex.Entry e = known.get(n);
+                if (e != null && e.size == size && e.lastModified == lastModified) {
+                    results.add(e);
+                    continue;
+                }
+                try {
+                    results.add(new FileIndex.Entry(n, size, lastModified, FileIndex.hash(f)));
+                } catch (final IOException ex) {
+                    results.add(ex);
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
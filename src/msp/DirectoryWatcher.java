@@ -0,0 +1,218 @@
+package msp;
+
+import arc.Core;
+import arc.files.Fi;
+import arc.func.Cons;
+import arc.util.Log;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells which directories changed, once they are quiet for {@link #DEBOUNCE} ms.
+ * <br>
+ * A WatchService on desktop, elsewhere the directories are listed every {@link #POLL_INTERVAL} ms.
+ * Only files with the index's extension count. Changes made while it's suspended are held back until it resumes.
+ * Files a sync {@link #wrote} don't count while they are as the sync left them, the user's edits during the sync still do.
+ */
+public class DirectoryWatcher {
+    public static final int DEBOUNCE = 3000, POLL_INTERVAL = 10000, SETTLE = 1000;
+
+    /** Keys of the directories. */
+    private final Map<String, FileIndex> dirs;
+    private final Cons<HashSet<String>> listener;
+    private final HashSet<String> changed = new HashSet<>();
+    /** Paths changed while suspended by key, null if the system didn't say which. */
+    private final HashMap<String, HashSet<String>> held = new HashMap<>();
+    private final HashSet<String> writing = new HashSet<>();
+    /** Size and time of the files syncs wrote, by path. */
+    private final HashMap<String, Long> written = new HashMap<>();
+    private Thread thread;
+    private long quietAt = 0, settleAt = 0;
+    private int suspended = 0;
+
+    /**
+     * @param listener gets the keys of changed directories on the watcher's thread.
+     */
+    public DirectoryWatcher(final Map<String, FileIndex> dirs, final Cons<HashSet<String>> listener) {
+        this.dirs = dirs;
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        thread = new Thread(this::run, "MSP-Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (thread == null)
+            return;
+        thread.interrupt();
+        thread = null;
+    }
+
+    public synchronized void suspend() { suspended++; }
+
+    /**
+     * Events the system still delivers in the next {@link #SETTLE} ms belong to the suspension too.
+     */
+    public synchronized void resume() {
+        if (--suspended > 0)
+            return;
+        settleAt = System.currentTimeMillis() + SETTLE;
+        for (final String path : writing)
+            written.put(path, stamp(new Fi(path)));
+        writing.clear();
+    }
+
+    /**
+     * The file is written by a sync, it's not a change to push back.
+     */
+    public synchronized void wrote(final Fi file) { writing.add(file.absolutePath()); }
+
+    private void run() {
+        if (Core.app == null || Core.app.isDesktop())
+            try (final WatchService s = FileSystems.getDefault().newWatchService()) {
+                watch(s);
+                return;
+            } catch (final InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            } catch (final IOException | UnsupportedOperationException ex) {
+                Log.err(ex);
+            }
+        try {
+            poll();
+        } catch (final InterruptedException ignored) {
+        }
+    }
+
+    private void watch(final WatchService s) throws IOException, InterruptedException {
+        final HashMap<WatchKey, String> keys = new HashMap<>();
+        for (final Map.Entry<String, FileIndex> e : dirs.entrySet()) {
+            e.getValue().dir.mkdirs();
+            keys.put(e.getValue().dir.file().toPath().register(s, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), e.getKey());
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            final WatchKey k = s.poll(timeout(), TimeUnit.MILLISECONDS);
+            if (k != null) {
+                final String key = keys.get(k);
+                // Overflow has no name, something changed.
+                for (final WatchEvent<?> e : k.pollEvents())
+                    changed(key, e.context() == null ? null : e.context().toString());
+                k.reset();
+            }
+            fire();
+        }
+    }
+
+    private void poll() throws InterruptedException {
+        final HashMap<String, HashMap<String, Long>> listings = new HashMap<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            for (final Map.Entry<String, FileIndex> e : dirs.entrySet()) {
+                final HashMap<String, Long> now = listing(e.getValue().dir), old = listings.put(e.getKey(), now);
+                if (old == null)
+                    continue;
+                for (final Map.Entry<String, Long> f : now.entrySet())
+                    if (!f.getValue().equals(old.get(f.getKey())))
+                        changed(e.getKey(), f.getKey());
+                for (final String name : old.keySet())
+                    if (!now.containsKey(name))
+                        changed(e.getKey(), name);
+            }
+            fire();
+            // Listing isn't worth doing every second during a sync.
+            final long t;
+            synchronized (this) {
+                t = suspended > 0 ? POLL_INTERVAL : Math.min(POLL_INTERVAL, timeout());
+            }
+            Thread.sleep(t);
+        }
+    }
+
+    private synchronized void changed(final String key, final String name) {
+        final FileIndex i = key == null ? null : dirs.get(key);
+        if (i == null || name != null && !name.endsWith(i.extension))
+            return;
+        final String path = name == null ? null : i.dir.child(name).absolutePath();
+        if (suspended > 0 || System.currentTimeMillis() < settleAt)
+            held.computeIfAbsent(key, k -> new HashSet<>()).add(path);
+        else if (!synced(path))
+            mark(key);
+    }
+
+    /**
+     * If the file is still as a sync wrote it.
+     */
+    private boolean synced(final String path) {
+        final Long w = path == null ? null : written.get(path);
+        if (w == null)
+            return false;
+        if (w == stamp(new Fi(path)))
+            return true;
+        written.remove(path);
+        return false;
+    }
+
+    private void mark(final String key) {
+        changed.add(key);
+        quietAt = System.currentTimeMillis() + DEBOUNCE;
+    }
+
+    /**
+     * A suspended watcher checks every {@link #SETTLE} ms if it was resumed.
+     */
+    private synchronized long timeout() {
+        final long now = System.currentTimeMillis();
+        long t = changed.isEmpty() ? POLL_INTERVAL : quietAt - now;
+        if (suspended > 0)
+            t = Math.min(t, SETTLE);
+        else if (!held.isEmpty())
+            t = Math.min(t, settleAt - now);
+        return Math.max(1, t);
+    }
+
+    private void fire() {
+        final HashSet<String> c;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (suspended == 0 && now >= settleAt && !held.isEmpty()) {
+                for (final Map.Entry<String, HashSet<String>> e : held.entrySet())
+                    for (final String path : e.getValue())
+                        if (!synced(path)) {
+                            mark(e.getKey());
+                            break;
+                        }
+                held.clear();
+            }
+            if (changed.isEmpty() || now < quietAt)
+                return;
+            c = new HashSet<>(changed);
+            changed.clear();
+        }
+        try {
+            listener.get(c);
+        } catch (final Exception ex) {
+            Log.err(ex);
+        }
+    }
+
+    /**
+     * Sizes and times of the files, cheap enough to list every few seconds.
+     */
+    private static HashMap<String, Long> listing(final Fi dir) {
+        final HashMap<String, Long> m = new HashMap<>();
+        for (final Fi f : dir.list())
+            m.put(f.name(), stamp(f));
+        return m;
+    }
+
+    private static long stamp(final Fi f) { return f.length() * 31L + f.lastModified(); }
+}
\ No newline at end of file
@@ -0,0 +1,341 @@
+package msp;
+
+import arc.files.Fi;
+import arc.util.Log;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * Remembers size, last modified and hash of every file in a directory between syncs,
+ * so only new or changed files are hashed again.
+ * <br>
+ * Every change it notices is appended to a journal, a peer that has seen the journal up to some position
+ * only needs the files changed after it.
+ */
+public class FileIndex {
+    public static final int VERSION = 2, HASH_SIZE = 16;
+    public static final byte MODIFIED = 1, REMOVED = 2;
+    /** Records in the journal beyond one per file before it's rewritten. */
+    public static final int JOURNAL_SLACK = 4096;
+
+    public static class Entry {
+        public final String name;
+        public final long size, lastModified;
+        public final byte[] hash;
+
+        public Entry(final String name, final long size, final long lastModified, final byte[] hash) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    public final Fi dir, store, journal;
+    public final String extension;
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private boolean loaded = false, changed = false;
+
+    // Journal: EPOCH (8) + [SEQ (8) + OP (1) + NAME]...
+    /** The last change of every file, by name. */
+    private final HashMap<String, Long> changes = new HashMap<>();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private long epoch = 0, head = 0;
+    private int records = 0;
+
+    /** What we have from every peer's journal: EPOCH, POSITION. */
+    private final HashMap<UUID, long[]> watermarks = new HashMap<>();
+
+    /**
+     * @param store where the index is kept between runs.
+     * @param dir the indexed directory, only its direct children are indexed.
+     * @param extension only files ending with it are indexed, can be empty.
+     */
+    public FileIndex(final Fi store, final Fi dir, final String extension) {
+        this.store = store;
+        this.dir = dir;
+        this.extension = extension;
+        journal = store.sibling(store.nameWithoutExtension() + ".journal");
+    }
+
+    /**
+     * Rescans the directory, hashing only files whose size or last modified time changed.
+     * Files are hashed in parallel by {@link DirectoryScanner}, each goes to the journal as soon as it's hashed.
+     * @return a snapshot of the index, by file name.
+     */
+    public synchronized HashMap<String, Entry> refresh() throws IOException {
+        load();
+
+        final HashSet<String> seen = new HashSet<>();
+        final Fi[] list = dir.list();
+        if (list != null)
+            DirectoryScanner.scan(list, extension, new HashMap<>(entries), e -> {
+                seen.add(e.name);
+                if (entries.get(e.name) == e)
+                    return;
+                entries.put(e.name, e);
+                record(e.name, MODIFIED);
+            });
+
+        for (final Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+            final String n = it.next();
+            if (seen.contains(n))
+                continue;
+            it.remove();
+            record(n, REMOVED);
+        }
+
+        save();
+        return new HashMap<>(entries);
+    }
+
+    /**
+     * Records a file that was just written by a sync.
+     */
+    public synchronized Entry update(final Fi file) throws IOException {
+        load();
+        return put(file);
+    }
+
+    public synchronized void remove(final String name) {
+        load();
+        if (entries.remove(name) != null)
+            record(name, REMOVED);
+    }
+
+    public synchronized Entry get(final String name) { return entries.get(name); }
+
+    /**
+     * @return EPOCH and HEAD of the journal, a new epoch means older positions mean nothing.
+     */
+    public synchronized long[] journalHead() {
+        load();
+        return new long[] { epoch, head };
+    }
+
+    /**
+     * @return names of files changed after the position, null if it isn't a position of this journal.
+     */
+    public synchronized HashSet<String> changedSince(final long epoch, final long position) {
+        load();
+        if (epoch != this.epoch || position < 0 || position > head)
+            return null;
+        final HashSet<String> r = new HashSet<>();
+        for (final Map.Entry<String, Long> e : changes.entrySet())
+            if (e.getValue() > position)
+                r.add(e.getKey());
+        return r;
+    }
+
+    /**
+     * @return EPOCH and POSITION of the peer's journal we have everything from, null for an unknown peer.
+     */
+    public synchronized long[] getWatermark(final UUID peer) {
+        load();
+        final long[] w = watermarks.get(peer);
+        return w == null ? null : w.clone();
+    }
+
+    /**
+     * Only after everything the peer offered up to the position was handled.
+     */
+    public synchronized void setWatermark(final UUID peer, final long epoch, final long position) {
+        load();
+        watermarks.put(peer, new long[] { epoch, position });
+        changed = true;
+    }
+
+    public synchronized void save() {
+        if (!changed)
+            return;
+        // The journal goes first, an index that is ahead of its journal would hide changes from peers.
+        if (pending.size() > 0)
+            try {
+                if (records > changes.size() + JOURNAL_SLACK)
+                    compactJournal();
+                else {
+                    try (final OutputStream o = journal.write(true)) {
+                        pending.writeTo(o);
+                    }
+                    pending.reset();
+                }
+            } catch (final IOException ex) {
+                Log.err(ex);
+                return;
+            }
+
+        final Fi tmp = FileUtil.temp(store);
+        try {
+            try (final DataOutputStream o = new DataOutputStream(new BufferedOutputStream(tmp.write(false)))) {
+                o.writeInt(VERSION);
+                o.writeInt(entries.size());
+                for (final Entry e : entries.values()) {
+                    o.writeUTF(e.name);
+                    o.writeLong(e.size);
+                    o.writeLong(e.lastModified);
+                    o.write(e.hash);
+                }
+                // Watermarks: PEER (16) + EPOCH (8) + POSITION (8)
+                o.writeInt(watermarks.size());
+                for (final Map.Entry<UUID, long[]> w : watermarks.entrySet()) {
+                    o.writeLong(w.getKey().getMostSignificantBits());
+                    o.writeLong(w.getKey().getLeastSignificantBits());
+                    o.writeLong(w.getValue()[0]);
+                    o.writeLong(w.getValue()[1]);
+                }
+            }
+            FileUtil.replace(tmp, store);
+        } catch (final IOException ex) {
+            Log.err(ex);
+            return;
+        }
+        changed = false;
+    }
+
+    private Entry put(final Fi file) throws IOException {
+        final Entry e = new Entry(file.name(), file.length(), file.lastModified(), hash(file));
+        entries.put(e.name, e);
+        record(e.name, MODIFIED);
+        return e;
+    }
+
+    private void record(final String name, final byte op) {
+        changes.put(name, ++head);
+        records++;
+        changed = true;
+        try {
+            pendingOut.writeLong(head);
+            pendingOut.writeByte(op);
+            pendingOut.writeUTF(name);
+        } catch (final IOException ex) {
+            // A ByteArrayOutputStream doesn't throw.
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the last change of every file, positions stay the same.
+     */
+    private void compactJournal() throws IOException {
+        final ArrayList<Map.Entry<String, Long>> l = new ArrayList<>(changes.entrySet());
+        l.sort((a, b) -> Long.compare(a.getValue(), b.getValue()));
+        final Fi tmp = FileUtil.temp(journal);
+        try (final DataOutputStream o = new DataOutputStream(new BufferedOutputStream(tmp.write(false)))) {
+            o.writeLong(epoch);
+            for (final Map.Entry<String, Long> e : l) {
+                o.writeLong(e.getValue());
+                o.writeByte(entries.containsKey(e.getKey()) ? MODIFIED : REMOVED);
+                o.writeUTF(e.getKey());
+            }
+        }
+        FileUtil.replace(tmp, journal);
+        pending.reset();
+        records = l.size();
+    }
+
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        loadIndex();
+        loadJournal();
+    }
+
+    private void loadIndex() {
+        if (!store.exists())
+            return;
+        try (final DataInputStream r = new DataInputStream(new BufferedInputStream(store.read()))) {
+            final int version = r.readInt();
+            if (version != VERSION && version != 1)
+                return;
+            for (int i = r.readInt(); i > 0; i--) {
+                final String n = r.readUTF();
+                final long size = r.readLong(), lastModified = r.readLong();
+                final byte[] hash = new byte[HASH_SIZE];
+                r.readFully(hash);
+                entries.put(n, new Entry(n, size, lastModified, hash));
+            }
+            if (version == 1)
+                return;
+            for (int i = r.readInt(); i > 0; i--)
+                watermarks.put(new UUID(r.readLong(), r.readLong()), new long[] { r.readLong(), r.readLong() });
+        } catch (final IOException ex) {
+            Log.err(ex);
+            entries.clear();
+            watermarks.clear();
+        }
+    }
+
+    private void loadJournal() {
+        boolean torn = false;
+        if (journal.exists())
+            try (final DataInputStream r = new DataInputStream(new BufferedInputStream(journal.read()))) {
+                epoch = r.readLong();
+                while (true) {
+                    final long seq;
+                    try {
+                        seq = r.readLong();
+                    } catch (final EOFException ex) {
+                        break;
+                    }
+                    r.readByte();
+                    changes.put(r.readUTF(), seq);
+                    head = Math.max(head, seq);
+                    records++;
+                }
+            } catch (final IOException ex) {
+                // A record cut by a crash, it's dropped by the rewrite below.
+                Log.err(ex);
+                torn = true;
+            }
+
+        if (epoch == 0) {
+            final SecureRandom random = new SecureRandom();
+            do
+                epoch = random.nextLong();
+            while (epoch == 0);
+            head = 0;
+            changes.clear();
+            torn = true;
+        }
+        if (torn)
+            try {
+                compactJournal();
+            } catch (final IOException ex) {
+                Log.err(ex);
+            }
+    }
+
+    public static MessageDigest md5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    public static byte[] hash(final Fi file) throws IOException {
+        final MessageDigest md = md5();
+        final File f = file.file();
+        if (f != null && f.isFile() && MappedFile.mappable(f.length())) {
+            try (final MappedFile m = new MappedFile(f)) {
+                for (long pos = 0; pos < m.length; pos += MappedFile.WINDOW)
+                    md.update(m.slice(pos, (int) Math.min(MappedFile.WINDOW, m.length - pos)));
+            }
+            return md.digest();
+        }
+        final byte[] buf = new byte[8192];
+        try (final InputStream r = file.read()) {
+            int l;
+            while ((l = r.read(buf)) != -1)
+                md.update(buf, 0, l);
+        }
+        return md.digest();
+    }
+}
@@ -0,0 +1,25 @@
+package msp;
+
+import arc.files.Fi;
+
+import java.io.IOException;
+
+public class FileUtil {
+    public static final String TEMP_EXTENSION = ".part";
+
+    /**
+     * A temporary file next to the file, it doesn't match the file's extension.
+     */
+    public static Fi temp(final Fi file) { return file.sibling(file.name() + TEMP_EXTENSION); }
+
+    /**
+     * Renames the temporary file over the target, falls back to delete and rename where rename can't replace.
+     */
+    public static void replace(final Fi tmp, final Fi file) throws IOException {
+        if (tmp.file().renameTo(file.file()))
+            return;
+        file.delete();
+        if (!tmp.file().renameTo(file.file()))
+            throw new IOException("Can't rename " + tmp.path() + " to " + file.path());
+    }
+}
@@ -0,0 +1,24 @@
+package msp;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves big files over extra connections to the same peer, every connection carries one range of the file.
+ */
+public interface IFileStriper {
+    /**
+     * Whether a file of this size is worth striping, only the sender asks.
+     */
+    boolean accepts(final long length);
+
+    /**
+     * Called after LENGTH and {@link ISyncContext#STRIPED} were written, anything the receiver needs goes through the context.
+     */
+    void send(final ISyncContext c, final FileChannel file, final long length) throws IOException;
+
+    /**
+     * Writes the received ranges into the file at their positions.
+     */
+    void receive(final ISyncContext c, final FileChannel file, final long length) throws IOException;
+}
@@ -3,12 +3,20 @@ package msp;
 import arc.files.Fi;
 import mindustry.ui.dialogs.BaseDialog;
 
-import java.io.IOException;
-import java.io.OutputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
 public interface ISyncContext {
+    int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Part length that tells the rest of the file goes over {@link #getStriper()}.
+     */
+    int STRIPED = -2;
+
     /**
      * To detect the side.
      */
@@ -21,21 +29,80 @@ public interface ISyncContext {
 
     default boolean hasData() { return true; }
 
+    /**
+     * Null for headless contexts, see {@link msp.base.LoopbackSyncService}.
+     */
     BaseDialog getDialog();
 
+    /**
+     * Null if the context can't open extra connections to the peer.
+     */
+    default IFileStriper getStriper() { return null; }
+
+    /**
+     * Id of the other device, null if the service doesn't know it.
+     */
+    default UUID getPeerId() { return null; }
+
+    /**
+     * Counters of the data using this context, a detached one if nobody measures the sync.
+     */
+    default SyncMetrics.Data getMetrics() { return new SyncMetrics.Data(""); }
+
+    /**
+     * The sync wrote the file, so the service doesn't take it for the user's change.
+     */
+    default void wrote(final Fi file) {}
+
     void write(byte b) throws IOException;
     void write(int b) throws IOException;
 
-    default void write(final byte[] arr) throws IOException {
-        for (final byte b : arr)
-            write(b);
-    }
+    default void write(final byte[] arr) throws IOException { write(arr, 0, arr.length); }
 
+    /**
+     * Every other array write ends up here, override it to move whole arrays at once.
+     */
     default void write(final byte[] arr, int off, int len) throws IOException {
         for (len += off; off < len; off++)
             write(arr[off]);
     }
 
+    /**
+     * Writes the remaining bytes of the buffer and moves its position to the limit.
+     */
+    default void write(final ByteBuffer buf) throws IOException {
+        if (buf.hasArray()) {
+            write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        final byte[] b = new byte[Math.min(buf.remaining(), 8192)];
+        while (buf.hasRemaining()) {
+            final int n = Math.min(b.length, buf.remaining());
+            buf.get(b, 0, n);
+            write(b, 0, n);
+        }
+    }
+
+    /**
+     * Writes a region of the file, contexts backed by a socket channel can send it without copying.
+     */
+    default void write(final FileChannel file, long position, long count) throws IOException {
+        final ByteBuffer b = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, count));
+        while (count > 0) {
+            b.clear();
+            if (b.capacity() > count)
+                b.limit((int) count);
+            final int n = file.read(b, position);
+            if (n == -1)
+                throw new IOException("File is shorter than expected");
+            b.flip();
+            write(b);
+            position += n;
+            count -= n;
+        }
+    }
+
     default void write(final String str) throws IOException {
         write(str.getBytes(StandardCharsets.UTF_8));
     }
@@ -55,10 +122,73 @@ public interface ISyncContext {
         write((byte)value);
     }
 
+    default void writeLong(final long value) throws IOException {
+        writeInt((int)(value >>> 32));
+        writeInt((int)value);
+    }
+
+    /**
+     * Streams the file, see {@link #send(InputStream, long)} and {@link #send(FileChannel)}.
+     */
     default void sendFile(final Fi file) throws IOException {
-        final byte[] d = file.readBytes();
-        writeInt(d.length);
-        write(d);
+        final File f = file.file();
+        if (f != null && f.isFile()) {
+            try (final FileInputStream r = new FileInputStream(f)) {
+                send(r.getChannel());
+            }
+            return;
+        }
+        try (final InputStream r = file.read()) {
+            send(r, file.length());
+        }
+    }
+
+    /**
+     * Same framing as {@link #send(InputStream, long)}, the parts go through {@link #write(FileChannel, long, long)}.
+     * <br>
+     * Files the striper accepts are sent as LENGTH (8) + STRIPED (4) + whatever the striper writes + -1 (4).
+     */
+    default void send(final FileChannel file) throws IOException {
+        final long length = file.size();
+        writeLong(length);
+        final IFileStriper s = getStriper();
+        if (s != null && s.accepts(length)) {
+            writeInt(STRIPED);
+            s.send(this, file, length);
+            // The stripes bypass this context.
+            getMetrics().bytesOut.addAndGet(length);
+        } else
+            for (long pos = 0; pos < length;) {
+                final int part = (int) Math.min(CHUNK_SIZE, length - pos);
+                writeInt(part);
+                write(file, pos, part);
+                pos += part;
+            }
+        writeInt(-1);
+        flush();
+        getMetrics().filesOut.incrementAndGet();
+    }
+
+    /**
+     * Streams in chunks, so only one chunk is in memory at a time.
+     * <br>
+     * LENGTH (8) + [PART_LENGTH (4) + PART]... + -1 (4)
+     */
+    default void send(final InputStream in, final long length) throws IOException {
+        writeLong(length);
+        final byte[] buf = new byte[CHUNK_SIZE];
+        long left = length;
+        while (left > 0) {
+            final int l = in.read(buf, 0, (int) Math.min(buf.length, left));
+            if (l == -1)
+                throw new IOException("File is shorter than " + length + " bytes");
+            writeInt(l);
+            write(buf, 0, l);
+            left -= l;
+        }
+        writeInt(-1);
+        flush();
+        getMetrics().filesOut.incrementAndGet();
     }
 
     void flush() throws IOException;
@@ -69,6 +199,25 @@ public interface ISyncContext {
 
     default byte[] readBuf(final int len) throws IOException { return readBuf(new byte[len], 0, len); }
 
+    /**
+     * Fills the caller's buffer without allocating.
+     */
+    default void readFully(final byte[] buf, final int off, final int len) throws IOException { readBuf(buf, off, len); }
+    default void readFully(final byte[] buf) throws IOException { readBuf(buf, 0, buf.length); }
+
+    /**
+     * Fills the remaining bytes of the buffer and moves its position to the limit.
+     */
+    default void readFully(final ByteBuffer buf) throws IOException {
+        if (buf.hasArray()) {
+            readBuf(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        while (buf.hasRemaining())
+            buf.put(readByte());
+    }
+
     default boolean tryRead(final byte[] data) throws IOException {
         for (final byte b : data)
             if (b != readByte())
@@ -83,14 +232,91 @@ public interface ISyncContext {
                 (readByte() & 0xFF);
     }
 
-    default UUID readUUID() throws IOException { return UUID.nameUUIDFromBytes(readBuf(16)); }
-    default String readString() throws IOException { return new String(readBuf(readByte()), StandardCharsets.UTF_8); }
+    default long readLong() throws IOException { return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL); }
+
+    default UUID readUUID() throws IOException { return new UUID(readLong(), readLong()); }
+    default String readString() throws IOException { return new String(readBuf(readByte() & 0xFF), StandardCharsets.UTF_8); }
+
+    /**
+     * Receives a file sent by {@link #sendFile(Fi)}.
+     * @param o where to write the file, null to skip it.
+     */
+    default void readFile(final OutputStream o) throws IOException { readFile(o, null); }
 
-    default void readFile(final OutputStream o) throws IOException {
-        if (o == null) {
-            readBuf(readInt());
+    /**
+     * @param file the channel behind o, striped files are written straight into it. If null, they go through a temporary file.
+     */
+    default void readFile(final OutputStream o, final FileChannel file) throws IOException {
+        final long length = readLong();
+        final byte[] buf = new byte[CHUNK_SIZE];
+        long total = 0;
+        int s;
+        while ((s = readInt()) != -1) {
+            if (s == STRIPED) {
+                if (total != 0)
+                    throw new IOException("Striped part after " + total + " bytes");
+                receiveStriped(o, file, length);
+                total = length;
+                continue;
+            }
+            if (s < -1)
+                throw new IOException("Negative part size: " + s);
+            total += s;
+            while (s > 0) {
+                final int n = Math.min(s, buf.length);
+                readBuf(buf, 0, n);
+                if (o != null)
+                    o.write(buf, 0, n);
+                s -= n;
+            }
+        }
+        if (total != length)
+            throw new IOException("Expected " + length + " bytes, received " + total);
+        getMetrics().filesIn.incrementAndGet();
+    }
+
+    /**
+     * The {@link #STRIPED} part of {@link #readFile(OutputStream, FileChannel)}.
+     */
+    default void receiveStriped(final OutputStream o, final FileChannel file, final long length) throws IOException {
+        final IFileStriper striper = getStriper();
+        if (striper == null)
+            throw new IOException("Striped file over a context without extra connections");
+        getMetrics().bytesIn.addAndGet(length);
+        if (file != null) {
+            striper.receive(this, file, length);
             return;
         }
-        o.write(readBuf(readInt()));
+        final File tmp = File.createTempFile("msp", FileUtil.TEMP_EXTENSION);
+        try {
+            try (final RandomAccessFile f = new RandomAccessFile(tmp, "rw")) {
+                striper.receive(this, f.getChannel(), length);
+            }
+            if (o == null)
+                return;
+            try (final InputStream r = new FileInputStream(tmp)) {
+                final byte[] buf = new byte[CHUNK_SIZE];
+                int l;
+                while ((l = r.read(buf)) != -1)
+                    o.write(buf, 0, l);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Receives a file into a temporary file next to the target, which replaces the target only when complete.
+     */
+    default void receiveFile(final Fi file) throws IOException {
+        wrote(file);
+        final Fi tmp = FileUtil.temp(file);
+        try (final FileOutputStream o = new FileOutputStream(tmp.file())) {
+            readFile(o, o.getChannel());
+        } catch (final IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        FileUtil.replace(tmp, file);
     }
-}
\ No newline at end of file
+}
@@ -8,5 +8,7 @@ public interface ISyncData {
     String getName();
     default Drawable getIcon() { return null; }
     void settings();
+    /** The directory of the data, watched for auto-sync. Null if the data has no files. */
+    default FileIndex getIndex() { return null; }
     void sync(final ISyncContext context) throws IOException;
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package msp;
+
+import arc.Application;
+import arc.Core;
+import arc.func.Prov;
+import arc.scene.ui.Label;
+import arc.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Main thread work posted by syncs, drained under a time budget every frame so a big sync doesn't drop frames.
+ */
+public class MainThread {
+    /** Time a frame spends on queued work, at least one runnable runs every frame. */
+    public static final long BUDGET_NANOS = 4_000_000L;
+
+    private static final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentHashMap<Object, Runnable> latest = new ConcurrentHashMap<>();
+    private static final AtomicBoolean posted = new AtomicBoolean();
+    /** Plays the main thread when there's no application, like in headless tests. */
+    private static ExecutorService fallback = null;
+
+    public static void post(final Runnable r) {
+        queue.add(r);
+        if (posted.compareAndSet(false, true))
+            schedule();
+    }
+
+    /**
+     * Coalesced: of the runnables posted with the same key before the first of them runs, only the last one runs.
+     * Meant for status updates, where only the latest value matters.
+     */
+    public static void post(final Object key, final Runnable r) {
+        if (latest.put(key, r) == null)
+            post(() -> {
+                final Runnable l = latest.remove(key);
+                if (l != null)
+                    l.run();
+            });
+    }
+
+    /**
+     * Coalesced label update, only the latest text is shown. Does nothing without a label.
+     */
+    public static void text(final Label l, final Prov<CharSequence> text) {
+        if (l != null)
+            post(l, () -> l.setText(text.get()));
+    }
+
+    private static void drain() {
+        posted.set(false);
+        final long end = System.nanoTime() + BUDGET_NANOS;
+        do {
+            final Runnable r = queue.poll();
+            if (r == null)
+                return;
+            try {
+                r.run();
+            } catch (final Throwable e) {
+                Log.err(e);
+            }
+        } while (System.nanoTime() < end);
+        // The rest waits for the next frame.
+        if (!queue.isEmpty() && posted.compareAndSet(false, true))
+            schedule();
+    }
+
+    private static void schedule() {
+        final Application app = Core.app;
+        if (app != null) {
+            app.post(MainThread::drain);
+            return;
+        }
+        synchronized (MainThread.class) {
+            if (fallback == null)
+                fallback = Executors.newSingleThreadExecutor(r -> {
+                    final Thread t = new Thread(r, "MSP-Main");
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+        fallback.execute(MainThread::drain);
+    }
+}
\ No newline at end of file
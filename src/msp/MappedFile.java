@@ -0,0 +1,81 @@
+package msp;
+
+import arc.Core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file in slices that hashing and sending share, so every byte is read from the disk once.
+ * <br>
+ * Large files on desktop are memory mapped {@link #WINDOW} bytes at a time and slices are views of the mapping,
+ * elsewhere a slice is read into a heap buffer reused by the next one.
+ */
+public class MappedFile implements Closeable {
+    /** Smaller files cost more to map than to read. */
+    public static final long MIN_MAP = 1024 * 1024;
+    public static final int WINDOW = 64 * 1024 * 1024;
+
+    public final long length;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean mapped;
+    private ByteBuffer map, buf;
+    private long mapStart = 0, mapEnd = 0;
+
+    public MappedFile(final File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        length = channel.size();
+        mapped = mappable(length);
+    }
+
+    /**
+     * Android streams. So does Windows, a mapped file stays locked there until the mapping is collected, and the game must still be able to save.
+     */
+    public static boolean mappable(final long length) {
+        return length >= MIN_MAP && (Core.app == null || Core.app.isDesktop()) && !System.getProperty("os.name", "").startsWith("Windows");
+    }
+
+    /**
+     * @param len at most {@link #WINDOW}.
+     * @return the bytes from position, valid until the next slice.
+     */
+    public ByteBuffer slice(final long position, final int len) throws IOException {
+        if (len > WINDOW)
+            throw new IllegalArgumentException("Slice is larger than the window: " + len);
+        if (position < 0 || position + len > length)
+            throw new EOFException("File is shorter than expected");
+        if (!mapped) {
+            if (buf == null || buf.capacity() < len)
+                buf = ByteBuffer.allocate(len);
+            buf.clear();
+            buf.limit(len);
+            while (buf.hasRemaining())
+                if (channel.read(buf, position + buf.position()) == -1)
+                    throw new EOFException("File is shorter than expected");
+            buf.flip();
+            return buf;
+        }
+        if (map == null || position < mapStart || position + len > mapEnd) {
+            mapStart = position;
+            mapEnd = Math.min(length, position + WINDOW);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        }
+        final ByteBuffer b = map.duplicate();
+        b.limit((int) (position - mapStart) + len);
+        b.position((int) (position - mapStart));
+        return b;
+    }
+
+    @Override
+    public void close() throws IOException {
+        map = null;
+        file.close();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,109 @@
+package msp;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Two level hash tree over the files of an index, peers compare the root first and descend only into nodes that differ.
+ * A file counts by its name and content hash, so copies with different modification times are equal.
+ * <br>
+ * ROOT (8) + [NODE (8)] x FANOUT, then [LEAF (8)] x FANOUT for every node that differs.
+ */
+public class Merkle {
+    public static final int FANOUT = 16, LEAVES = FANOUT * FANOUT;
+
+    public final long[] leaves = new long[LEAVES], nodes = new long[FANOUT];
+    public final long root;
+
+    public Merkle(final Collection<FileIndex.Entry> entries) {
+        // Leaves are sums, so the order of the entries doesn't matter.
+        for (final FileIndex.Entry e : entries) {
+            final long h = hash(e.name);
+            leaves[bucket(h)] += mix(h ^ getLong(e.hash));
+        }
+        long r = 0;
+        for (int i = 0; i < FANOUT; i++) {
+            long n = i;
+            for (int j = 0; j < FANOUT; j++)
+                n = mix(n ^ leaves[i * FANOUT + j]);
+            nodes[i] = n;
+            r = mix(r ^ n);
+        }
+        root = r;
+    }
+
+    /**
+     * Both sides call it at the same point, one round trip when the trees are equal, two otherwise.
+     * @return which leaves differ, null if the trees are equal.
+     */
+    public boolean[] diff(final ISyncContext c) throws IOException {
+        write(c);
+        c.flush();
+        return read(c);
+    }
+
+    /**
+     * The first half of {@link #diff(ISyncContext)}, lets the caller send more in the same round trip.
+     */
+    public void write(final ISyncContext c) throws IOException {
+        c.writeLong(root);
+        for (final long n : nodes)
+            c.writeLong(n);
+    }
+
+    /**
+     * The second half of {@link #diff(ISyncContext)}, after the caller flushed.
+     */
+    public boolean[] read(final ISyncContext c) throws IOException {
+        final long r = c.readLong();
+        final long[] remote = new long[FANOUT];
+        for (int i = 0; i < FANOUT; i++)
+            remote[i] = c.readLong();
+        if (r == root)
+            return null;
+
+        for (int i = 0; i < FANOUT; i++)
+            if (remote[i] != nodes[i])
+                for (int j = 0; j < FANOUT; j++)
+                    c.writeLong(leaves[i * FANOUT + j]);
+        c.flush();
+
+        final boolean[] d = new boolean[LEAVES];
+        for (int i = 0; i < FANOUT; i++)
+            if (remote[i] != nodes[i])
+                for (int j = 0; j < FANOUT; j++)
+                    d[i * FANOUT + j] = c.readLong() != leaves[i * FANOUT + j];
+        return d;
+    }
+
+    public static int bucket(final String name) { return bucket(hash(name)); }
+
+    private static int bucket(final long hash) { return (int) (hash >>> 56); }
+
+    /**
+     * 64 bit FNV-1a over the chars, the same on every device.
+     */
+    private static long hash(final String name) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static long getLong(final byte[] data) {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (data[i] & 0xFF);
+        return v;
+    }
+}
@@ -13,11 +13,15 @@ import mindustry.game.EventType;
 import mindustry.gen.Icon;
 import mindustry.mod.*;
 import msp.base.LocalSyncService;
+import msp.base.ResearchData;
+import msp.base.SavesData;
 import msp.base.SchematicsData;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Pattern;
 
 public class MindustrySyncProject extends Mod {
@@ -28,6 +32,22 @@ public class MindustrySyncProject extends Mod {
     public final SyncVar<String> deviceName = new SyncVar<>();
     public final ArrayList<ISyncService> syncServices = new ArrayList<>();
     public final HashMap<String, ISyncData> syncDataList = new HashMap<>();
+    public final CopyOnWriteArrayList<SyncMetrics.Listener> syncListeners = new CopyOnWriteArrayList<>();
+    /** Devices that sync without asking, by id. Saved with the config. */
+    public final ConcurrentHashMap<UUID, TrustedDevice> trustedDevices = new ConcurrentHashMap<>();
+
+    private final HashMap<String, FileIndex> indexes = new HashMap<>();
+
+    public static class TrustedDevice {
+        public final String name;
+        /** Agreed on in a sync the user accepted, both sides prove they have it before a sync without asking. */
+        public final byte[] key;
+
+        public TrustedDevice(final String name, final byte[] key) {
+            this.name = name;
+            this.key = key;
+        }
+    }
 
     public MindustrySyncProject() {
         if (Vars.headless) {
@@ -60,6 +80,16 @@ public class MindustrySyncProject extends Mod {
 
                     if (v.has("deviceName"))
                         deviceName.set(DEVICE_NAME_FILTER.matcher(v.getString("deviceName")).replaceAll(""));
+
+                    // Devices trusted before keys were exchanged have to be trusted again.
+                    if (v.has("trusted"))
+                        for (final Jval t : v.get("trusted").asArray())
+                            try {
+                                if (t.has("key"))
+                                    trustedDevices.put(UUID.fromString(t.getString("uuid")), new TrustedDevice(t.getString("name", ""), Base64Coder.decode(t.getString("key"))));
+                            } catch (final IllegalArgumentException ex) {
+                                Log.err(ex);
+                            }
                 }
             } catch (final Exception ex) {
                 Log.err(ex);
@@ -97,9 +127,27 @@ public class MindustrySyncProject extends Mod {
         });*/
 
         syncServices.add(new LocalSyncService(this));
-        syncDataList.put(SchematicsData.class.getName(), new SchematicsData());
+        syncDataList.put(SchematicsData.class.getName(), new SchematicsData(this));
+        syncDataList.put(SavesData.class.getName(), new SavesData(this));
+        syncDataList.put(ResearchData.class.getName(), new ResearchData());
 
         Events.on(EventType.ClientLoadEvent.class, e -> {
+            // Warm up the file indexes, so the first sync doesn't wait for hashing.
+            final Thread w = new Thread(() -> {
+                final ArrayList<FileIndex> l;
+                synchronized (indexes) {
+                    l = new ArrayList<>(indexes.values());
+                }
+                for (final FileIndex i : l)
+                    try {
+                        i.refresh();
+                    } catch (final Exception ex) {
+                        Log.err(ex);
+                    }
+            }, "MSP-Index");
+            w.setDaemon(true);
+            w.start();
+
             // new TextureRegionDrawable(Core.atlas.find("mindustry-sync-project-frog")
             Vars.ui.settings.addCategory("@sync-menu", Icon.refresh, t -> {
                 t.defaults().size(280f, 60f);
@@ -173,12 +221,33 @@ public class MindustrySyncProject extends Mod {
         });
     }
 
+    /**
+     * A file index shared by all sync data, it is kept next to the config.
+     * @param name unique name of the index.
+     * @param dir the indexed directory.
+     * @param extension only files ending with it are indexed.
+     */
+    public FileIndex getIndex(final String name, final Fi dir, final String extension) {
+        synchronized (indexes) {
+            FileIndex i = indexes.get(name);
+            if (i == null)
+                indexes.put(name, i = new FileIndex(getConfig().sibling("index-" + name + ".bin"), dir, extension));
+            return i;
+        }
+    }
+
     public void save() {
         final Fi f = getConfig();
         try (final OutputStreamWriter o = new OutputStreamWriter(f.write())) {
             final Jval m = Jval.newObject();
-            m.put("uuid", Jval.valueOf(UUID.nameUUIDFromBytes(deviceId.get()).toString()));
+            final ByteBuffer b = ByteBuffer.wrap(deviceId.get());
+            m.put("uuid", Jval.valueOf(new UUID(b.getLong(), b.getLong()).toString()));
             m.put("deviceName", Jval.valueOf(deviceName.get()));
+            final Jval t = Jval.newArray();
+            for (final Map.Entry<UUID, TrustedDevice> e : trustedDevices.entrySet())
+                t.add(Jval.newObject().put("uuid", Jval.valueOf(e.getKey().toString())).put("name", Jval.valueOf(e.getValue().name))
+                        .put("key", Jval.valueOf(new String(Base64Coder.encode(e.getValue().key)))));
+            m.put("trusted", t);
             m.writeTo(o);
         } catch (final IOException ex) {
             Log.err(ex);
@@ -0,0 +1,512 @@
+package msp;
+
+import arc.files.Fi;
+import mindustry.ui.dialogs.BaseDialog;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Runs several {@link ISyncData} at once over one {@link ISyncContext}, each gets its own channel.
+ * Frames of the channels are sent round-robin, so a big transfer doesn't stall the others.
+ * <br>
+ * Frame: CHANNEL (1) + LENGTH (4) + DATA, LENGTH -1 closes the channel.
+ * <br>
+ * Every channel may have {@link #CREDIT} bytes in flight, the receiver returns them with
+ * CONTROL (1) + 5 (4) + CHANNEL (1) + COUNT (4) as it reads them. Bytes, not frames: a side sending many small frames,
+ * like requests, doesn't run out while the other side is busy sending it files.
+ * <br>
+ * Frames are {@link BufferPool#shared} buffers, outgoing ones are given back once the writer sent them, incoming ones once the channel read them.
+ */
+public class Multiplexer {
+    public static final int FRAME_SIZE = 64 * 1024, CREDIT = 8 * FRAME_SIZE, CONTROL = 255;
+
+    private static class Frame {
+        public final byte[] data;
+        public final int length;
+        public final FileChannel file;
+        public final long position;
+
+        public Frame(final byte[] data, final int length) {
+            this.data = data;
+            this.length = length;
+            file = null;
+            position = 0;
+        }
+
+        public Frame(final FileChannel file, final long position, final int length) {
+            data = null;
+            this.length = length;
+            this.file = file;
+            this.position = position;
+        }
+    }
+
+    private static final Frame CLOSE = new Frame(null, -1);
+
+    public final ISyncContext transport;
+    public final SyncMetrics metrics;
+    private final Channel[] channels;
+
+    /** Guards the outgoing queues, credits and {@link #controls}. */
+    private final Object locker = new Object();
+    private final ArrayDeque<int[]> controls = new ArrayDeque<>();
+    private int next = 0, remoteOpen, localOpen;
+
+    private final SyncVar<Throwable> error = new SyncVar<>();
+
+    public Multiplexer(final ISyncContext transport, final List<ISyncData> data) { this(transport, data, null); }
+
+    /**
+     * @param metrics gets the counters of every data, may be null.
+     */
+    public Multiplexer(final ISyncContext transport, final List<ISyncData> data, final SyncMetrics metrics) {
+        if (data.size() >= CONTROL)
+            throw new IllegalArgumentException("Too many channels: " + data.size());
+        this.transport = transport;
+        this.metrics = metrics;
+        channels = new Channel[data.size()];
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = new Channel(i, data.get(i));
+        remoteOpen = localOpen = channels.length;
+    }
+
+    /**
+     * Both sides must pass the same data in the same order.
+     * Returns when every channel finished on both sides.
+     */
+    public void run() throws IOException {
+        final Thread writer = new Thread(this::write, "MSP-Mux-Writer"), reader = new Thread(this::read, "MSP-Mux-Reader");
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+
+        final Thread[] threads = new Thread[channels.length];
+        for (int i = 0; i < threads.length; i++) {
+            final Channel c = channels[i];
+            threads[i] = new Thread(() -> {
+                final long allocated = SyncMetrics.allocated();
+                try {
+                    c.data.sync(c);
+                    c.flush();
+                    c.push(CLOSE);
+                } catch (final Throwable ex) {
+                    fail(ex);
+                } finally {
+                    c.release();
+                    c.metrics.phase(-1);
+                    if (allocated >= 0)
+                        c.metrics.allocated.set(SyncMetrics.allocated() - allocated);
+                }
+            }, "MSP-Sync-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        try {
+            for (final Thread t : threads)
+                t.join();
+            if (error.get() == null) {
+                writer.join();
+                reader.join();
+            }
+        } catch (final InterruptedException ex) {
+            fail(ex);
+        }
+        // Frames a failed sync didn't send.
+        synchronized (locker) {
+            for (final Channel c : channels)
+                for (Frame f; (f = c.queue.poll()) != null;)
+                    recycle(f);
+        }
+
+        // The caller closes the connection, that stops the reader and the peer.
+        final Throwable ex = error.get();
+        if (ex instanceof IOException)
+            throw (IOException) ex;
+        if (ex instanceof RuntimeException)
+            throw (RuntimeException) ex;
+        if (ex != null)
+            throw new IOException(ex);
+    }
+
+    private void fail(final Throwable ex) {
+        synchronized (error.locker) {
+            if (error.get() == null)
+                error.set(ex);
+        }
+        synchronized (locker) {
+            locker.notifyAll();
+        }
+        for (final Channel c : channels)
+            synchronized (c) {
+                c.notifyAll();
+            }
+    }
+
+    private static void recycle(final Frame f) {
+        if (f.data != null)
+            BufferPool.shared.give(f.data);
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                Channel c = null;
+                Frame f = null;
+                int[] control = null;
+                synchronized (locker) {
+                    while (true) {
+                        if (error.get() != null)
+                            return;
+                        control = controls.poll();
+                        if (control != null)
+                            break;
+                        for (int i = 0; i < channels.length; i++) {
+                            final Channel ch = channels[(next + i) % channels.length];
+                            if (!ch.queue.isEmpty()) {
+                                c = ch;
+                                f = ch.queue.poll();
+                                next = (ch.id + 1) % channels.length;
+                                locker.notifyAll();
+                                break;
+                            }
+                        }
+                        if (f != null)
+                            break;
+                        if (localOpen == 0 && remoteOpen == 0)
+                            return;
+                        locker.wait();
+                    }
+                }
+
+                if (control != null) {
+                    transport.write(CONTROL);
+                    transport.writeInt(5);
+                    transport.write(control[0]);
+                    transport.writeInt(control[1]);
+                } else {
+                    try {
+                        transport.write(c.id);
+                        transport.writeInt(f.length);
+                        if (f.file != null)
+                            transport.write(f.file, f.position, f.length);
+                        else if (f.length > 0)
+                            transport.write(f.data, 0, f.length);
+                    } finally {
+                        recycle(f);
+                    }
+                    if (f == CLOSE)
+                        synchronized (locker) {
+                            localOpen--;
+                        }
+                }
+
+                final boolean idle;
+                synchronized (locker) {
+                    idle = controls.isEmpty() && allEmpty();
+                }
+                if (idle)
+                    transport.flush();
+            }
+        } catch (final Throwable ex) {
+            fail(ex);
+        }
+    }
+
+    private boolean allEmpty() {
+        for (final Channel c : channels)
+            if (!c.queue.isEmpty())
+                return false;
+        return true;
+    }
+
+    private void read() {
+        try {
+            while (true) {
+                synchronized (locker) {
+                    if (remoteOpen == 0)
+                        return;
+                }
+                final int id = transport.readByte() & 0xFF, length = transport.readInt();
+
+                if (id == CONTROL) {
+                    if (length != 5)
+                        throw new IOException("Wrong control frame length: " + length);
+                    final int ch = transport.readByte() & 0xFF, count = transport.readInt();
+                    if (ch >= channels.length)
+                        throw new IOException("Unknown channel: " + ch);
+                    synchronized (locker) {
+                        channels[ch].credit += count;
+                        locker.notifyAll();
+                    }
+                    continue;
+                }
+
+                if (id >= channels.length)
+                    throw new IOException("Unknown channel: " + id);
+                final Channel c = channels[id];
+
+                if (length == -1) {
+                    synchronized (locker) {
+                        c.remoteClosed = true;
+                        remoteOpen--;
+                        locker.notifyAll();
+                    }
+                    synchronized (c) {
+                        c.notifyAll();
+                    }
+                    continue;
+                }
+                if (length < 0 || length > FRAME_SIZE)
+                    throw new IOException("Wrong frame length: " + length);
+
+                // A full pool hands out less than a frame, it's then read in parts.
+                for (int left = length; left > 0;) {
+                    final byte[] data = BufferPool.shared.take(left);
+                    final int n = Math.min(left, data.length);
+                    transport.readFully(data, 0, n);
+                    left -= n;
+                    synchronized (c) {
+                        if (c.released)
+                            BufferPool.shared.give(data);
+                        else {
+                            c.in.add(new Frame(data, n));
+                            c.notifyAll();
+                        }
+                    }
+                }
+                c.metrics.bytesIn.addAndGet(length);
+            }
+        } catch (final Throwable ex) {
+            fail(ex);
+        }
+    }
+
+    private class Channel implements ISyncContext {
+        public final int id;
+        public final ISyncData data;
+        public final SyncMetrics.Data metrics;
+
+        // Guarded by locker.
+        public final ArrayDeque<Frame> queue = new ArrayDeque<>();
+        public int credit = CREDIT;
+        public volatile boolean remoteClosed = false;
+
+        // Written by the sync thread only, may be smaller than a frame if the pool is full.
+        private byte[] out = BufferPool.shared.take(FRAME_SIZE);
+        private int o = 0;
+
+        // Guarded by this.
+        public final ArrayDeque<Frame> in = new ArrayDeque<>();
+        public boolean released = false;
+        // Read by the sync thread only.
+        private Frame cur = null;
+        private int i = 0, consumed = 0;
+
+        public Channel(final int id, final ISyncData data) {
+            this.id = id;
+            this.data = data;
+            metrics = Multiplexer.this.metrics != null ? Multiplexer.this.metrics.data(data.getName()) : new SyncMetrics.Data(data.getName());
+        }
+
+        public void push(final Frame f) throws IOException {
+            synchronized (locker) {
+                while (f != CLOSE && credit < f.length && !remoteClosed) {
+                    check();
+                    try {
+                        locker.wait();
+                    } catch (final InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                check();
+                // Nobody reads it anymore.
+                if (remoteClosed && f != CLOSE) {
+                    recycle(f);
+                    return;
+                }
+                if (f != CLOSE) {
+                    credit -= f.length;
+                    metrics.bytesOut.addAndGet(f.length);
+                }
+                queue.add(f);
+                locker.notifyAll();
+            }
+        }
+
+        /**
+         * Gives the buffers back when the sync thread is done, frames that arrive later are dropped.
+         */
+        public void release() {
+            BufferPool.shared.give(out);
+            synchronized (this) {
+                released = true;
+                if (cur != null)
+                    recycle(cur);
+                cur = null;
+                for (Frame f; (f = in.poll()) != null;)
+                    recycle(f);
+            }
+        }
+
+        /**
+         * Waits until the writer took every queued frame.
+         */
+        private void drain() throws IOException {
+            synchronized (locker) {
+                while (!queue.isEmpty()) {
+                    check();
+                    try {
+                        locker.wait();
+                    } catch (final InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        private void check() throws IOException {
+            final Throwable ex = error.get();
+            if (ex != null)
+                throw new IOException("Sync failed", ex);
+        }
+
+        @Override public boolean isHost() { return transport.isHost(); }
+        @Override public boolean isStatic() { return transport.isStatic(); }
+        @Override public boolean hasData() { return transport.hasData(); }
+        @Override public BaseDialog getDialog() { return transport.getDialog(); }
+        @Override public UUID getPeerId() { return transport.getPeerId(); }
+        @Override public SyncMetrics.Data getMetrics() { return metrics; }
+        @Override public void wrote(final Fi file) { transport.wrote(file); }
+
+        @Override
+        public void write(final byte b) throws IOException {
+            if (o == out.length)
+                flush();
+            out[o++] = b;
+        }
+
+        @Override public void write(final int b) throws IOException { write((byte) b); }
+
+        @Override
+        public void write(final byte[] arr, int off, int len) throws IOException {
+            while (len > 0) {
+                if (o == out.length)
+                    flush();
+                final int n = Math.min(len, out.length - o);
+                System.arraycopy(arr, off, out, o, n);
+                o += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Copied straight into the frame, a mapped file is read only here.
+         */
+        @Override
+        public void write(final ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                if (o == out.length)
+                    flush();
+                final int n = Math.min(buf.remaining(), out.length - o);
+                buf.get(out, o, n);
+                o += n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (o == 0)
+                return;
+            push(new Frame(out, o));
+            out = BufferPool.shared.take(FRAME_SIZE);
+            o = 0;
+        }
+
+        @Override public IFileStriper getStriper() { return transport.getStriper(); }
+
+        /**
+         * The parts are queued as file regions, so they aren't copied until the writer sends them.
+         */
+        @Override
+        public void write(final FileChannel file, long position, long count) throws IOException {
+            flush();
+            while (count > 0) {
+                final int part = (int) Math.min(FRAME_SIZE, count);
+                push(new Frame(file, position, part));
+                position += part;
+                count -= part;
+            }
+        }
+
+        @Override
+        public void sendFile(final Fi file) throws IOException {
+            final File f = file.file();
+            if (f == null || !f.isFile()) {
+                ISyncContext.super.sendFile(file);
+                return;
+            }
+            try (final FileInputStream s = new FileInputStream(f)) {
+                send(s.getChannel());
+                // The queued regions still read from the file.
+                drain();
+            }
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            if (cur == null || i == cur.length)
+                next();
+            return cur.data[i++];
+        }
+
+        @Override
+        public byte[] readBuf(final byte[] buf, int off, int len) throws IOException {
+            while (len > 0) {
+                if (cur == null || i == cur.length)
+                    next();
+                final int n = Math.min(len, cur.length - i);
+                System.arraycopy(cur.data, i, buf, off, n);
+                i += n;
+                off += n;
+                len -= n;
+            }
+            return buf;
+        }
+
+        private void next() throws IOException {
+            if (cur != null) {
+                recycle(cur);
+                cur = null;
+            }
+            synchronized (this) {
+                while (in.isEmpty()) {
+                    check();
+                    if (remoteClosed)
+                        throw new EOFException("Channel " + id + " is closed");
+                    try {
+                        wait();
+                    } catch (final InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                cur = in.poll();
+                i = 0;
+            }
+            if ((consumed += cur.length) >= CREDIT / 2) {
+                synchronized (locker) {
+                    controls.add(new int[] { id, consumed });
+                    locker.notifyAll();
+                }
+                consumed = 0;
+            }
+        }
+    }
+}
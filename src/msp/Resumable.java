@@ -0,0 +1,218 @@
+package msp;
+
+import arc.files.Fi;
+import arc.util.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Transfers that survive a dropped connection: the partial file stays next to the target with a checkpoint,
+ * the next request continues from the last chunk that still matches its checksum.
+ * <br>
+ * Checkpoint: VERSION (4) + HASH (16) + LENGTH (8) + [CRC32 (4)] for every chunk written and synced to disk.
+ * <br>
+ * Stream: LENGTH (8) + HASH (16) + START (8) + [PART_LENGTH (4) + CRC32 (4) + PART]... + -1 (4)
+ */
+public class Resumable {
+    public static final int VERSION = 1, CHUNK = ISyncContext.CHUNK_SIZE, HEADER = 28;
+    /** Chunks written between checkpoints, every checkpoint waits for the disk. */
+    public static final int CHECKPOINT_EVERY = 16;
+
+    public static Fi checkpoint(final Fi file) { return file.sibling(file.name() + ".ckpt"); }
+
+    /**
+     * Checks the partial file of this version of the file against its checkpoint and cuts it at the first bad chunk.
+     * @return where the transfer continues, 0 if there's nothing to continue.
+     */
+    public static long offset(final Fi file, final byte[] hash, final long length) {
+        final Fi tmp = FileUtil.temp(file), ckpt = checkpoint(file);
+        if (!tmp.exists() || !ckpt.exists()) {
+            discard(file);
+            return 0;
+        }
+        try {
+            final int[] crcs;
+            try (final DataInputStream r = new DataInputStream(new BufferedInputStream(ckpt.read()))) {
+                final byte[] h = new byte[FileIndex.HASH_SIZE];
+                if (r.readInt() != VERSION)
+                    throw new IOException("Unknown checkpoint version");
+                r.readFully(h);
+                if (!Arrays.equals(h, hash) || r.readLong() != length) {
+                    // The peer has another version of the file by now.
+                    discard(file);
+                    return 0;
+                }
+                crcs = new int[(int) ((ckpt.length() - HEADER) / 4)];
+                for (int i = 0; i < crcs.length; i++)
+                    crcs[i] = r.readInt();
+            }
+
+            int verified = 0;
+            final byte[] buf = new byte[CHUNK];
+            final CRC32 crc = new CRC32();
+            try (final RandomAccessFile f = new RandomAccessFile(tmp.file(), "rw")) {
+                for (; verified < crcs.length; verified++) {
+                    final long pos = (long) verified * CHUNK;
+                    final int n = (int) Math.min(CHUNK, length - pos);
+                    if (n <= 0 || pos + n > f.length())
+                        break;
+                    f.seek(pos);
+                    f.readFully(buf, 0, n);
+                    crc.reset();
+                    crc.update(buf, 0, n);
+                    if ((int) crc.getValue() != crcs[verified])
+                        break;
+                }
+                f.setLength(Math.min(length, (long) verified * CHUNK));
+            }
+            if (verified < crcs.length)
+                writeCheckpoint(ckpt, hash, length, crcs, verified);
+            return Math.min(length, (long) verified * CHUNK);
+        } catch (final IOException ex) {
+            Log.err(ex);
+            discard(file);
+            return 0;
+        }
+    }
+
+    public static void discard(final Fi file) {
+        FileUtil.temp(file).delete();
+        checkpoint(file).delete();
+    }
+
+    /**
+     * @param hash of the file being sent.
+     * @param start where the receiver's partial file ends, only if it's a partial of the same version.
+     */
+    public static void send(final ISyncContext c, final Fi file, final byte[] hash, long start) throws IOException {
+        final long length = file.length();
+        if (start < 0 || start > length || start % CHUNK != 0)
+            start = 0;
+        c.writeLong(length);
+        c.write(hash);
+        c.writeLong(start);
+        final CRC32 crc = new CRC32();
+        // The checksum and the channel get the same slice, mapped on desktop.
+        try (final MappedFile f = new MappedFile(file.file())) {
+            for (long pos = start; pos < length;) {
+                final int n = (int) Math.min(CHUNK, length - pos);
+                final ByteBuffer b = f.slice(pos, n);
+                crc.reset();
+                crc.update(b.duplicate());
+                c.writeInt(n);
+                c.writeInt((int) crc.getValue());
+                c.write(b);
+                pos += n;
+            }
+        }
+        c.writeInt(-1);
+        c.flush();
+    }
+
+    /**
+     * Reads the stream into the partial file, checkpointing as it goes, and replaces the file once the whole hash matches.
+     * A connection error leaves the partial file for the next attempt.
+     * @return false if a chunk or the whole file didn't match, another request continues from the last good chunk.
+     */
+    public static boolean receive(final ISyncContext c, final Fi file) throws IOException {
+        final Fi tmp = FileUtil.temp(file), ckpt = checkpoint(file);
+        final long length = c.readLong();
+        final byte[] hash = c.readBuf(FileIndex.HASH_SIZE);
+        final long start = c.readLong();
+        if (start < 0 || start > length || start % CHUNK != 0)
+            throw new IOException("Wrong resume position: " + start);
+
+        // The checkpoint is cut to the position the sender chose.
+        final int[] kept = readCrcs(ckpt, (int) (start / CHUNK));
+        writeCheckpoint(ckpt, hash, length, kept, kept.length);
+        if (kept.length * (long) CHUNK != start)
+            throw new IOException("Checkpoint doesn't reach " + start);
+
+        final byte[] buf = new byte[CHUNK];
+        final CRC32 crc = new CRC32();
+        boolean bad = false;
+        long pos = start;
+        try (final RandomAccessFile f = new RandomAccessFile(tmp.file(), "rw");
+             final DataOutputStream o = new DataOutputStream(new FileOutputStream(ckpt.file(), true))) {
+            f.setLength(start);
+            f.seek(start);
+            final int[] pending = new int[CHECKPOINT_EVERY];
+            int p = 0, n;
+            try {
+                while ((n = c.readInt()) != -1) {
+                    if (n < 0 || n > CHUNK)
+                        throw new IOException("Wrong chunk length: " + n);
+                    final int expected = c.readInt();
+                    c.readFully(buf, 0, n);
+                    // After a bad chunk the rest is only drained, the next request starts from it.
+                    if (bad)
+                        continue;
+                    crc.reset();
+                    crc.update(buf, 0, n);
+                    if ((int) crc.getValue() != expected || pos + n > length) {
+                        Log.err("Chunk at " + pos + " of " + file.name() + " is corrupt");
+                        bad = true;
+                        continue;
+                    }
+                    f.write(buf, 0, n);
+                    pos += n;
+                    pending[p++] = expected;
+                    if (p == pending.length) {
+                        f.getFD().sync();
+                        for (int i = 0; i < p; i++)
+                            o.writeInt(pending[i]);
+                        o.flush();
+                        p = 0;
+                    }
+                }
+            } finally {
+                // Chunks written before the connection dropped are kept too.
+                f.getFD().sync();
+                for (int i = 0; i < p; i++)
+                    o.writeInt(pending[i]);
+            }
+        }
+        if (bad || pos != length)
+            return false;
+
+        final MessageDigest md = FileIndex.md5();
+        try (final InputStream r = tmp.read()) {
+            int l;
+            while ((l = r.read(buf)) != -1)
+                md.update(buf, 0, l);
+        }
+        if (!Arrays.equals(md.digest(), hash)) {
+            discard(file);
+            return false;
+        }
+        FileUtil.replace(tmp, file);
+        ckpt.delete();
+        return true;
+    }
+
+    private static int[] readCrcs(final Fi ckpt, final int max) throws IOException {
+        if (!ckpt.exists())
+            return new int[0];
+        try (final DataInputStream r = new DataInputStream(new BufferedInputStream(ckpt.read()))) {
+            r.skipBytes(HEADER);
+            final int[] crcs = new int[(int) Math.max(0, Math.min(max, (ckpt.length() - HEADER) / 4))];
+            for (int i = 0; i < crcs.length; i++)
+                crcs[i] = r.readInt();
+            return crcs;
+        }
+    }
+
+    private static void writeCheckpoint(final Fi ckpt, final byte[] hash, final long length, final int[] crcs, final int count) throws IOException {
+        try (final DataOutputStream o = new DataOutputStream(new BufferedOutputStream(ckpt.write(false)))) {
+            o.writeInt(VERSION);
+            o.write(hash);
+            o.writeLong(length);
+            for (int i = 0; i < count; i++)
+                o.writeInt(crcs[i]);
+        }
+    }
+}
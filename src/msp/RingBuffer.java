@@ -0,0 +1,63 @@
+package msp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * A bounded pipe for one writer and one reader thread, the writer waits while it's full and the reader while it's empty.
+ */
+public class RingBuffer {
+    private final byte[] buf;
+    private int head = 0, size = 0;
+    private boolean closed = false;
+
+    public RingBuffer(final int capacity) { buf = new byte[capacity]; }
+
+    public synchronized void write(final byte[] arr, int off, int len) throws IOException {
+        while (len > 0) {
+            while (size == buf.length && !closed)
+                await();
+            if (closed)
+                throw new EOFException("Ring buffer is closed");
+            final int tail = (head + size) % buf.length, n = Math.min(len, Math.min(buf.length - size, buf.length - tail));
+            System.arraycopy(arr, off, buf, tail, n);
+            size += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return at least 1 byte, what's available up to len.
+     */
+    public synchronized int read(final byte[] arr, final int off, final int len) throws IOException {
+        while (size == 0 && !closed)
+            await();
+        if (size == 0)
+            throw new EOFException("Ring buffer is closed");
+        final int n = Math.min(len, Math.min(size, buf.length - head));
+        System.arraycopy(buf, head, arr, off, n);
+        head = (head + n) % buf.length;
+        size -= n;
+        notifyAll();
+        return n;
+    }
+
+    /**
+     * The reader still gets what was written before.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (final InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,160 @@
+package msp;
+
+import arc.Core;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where a sync spends its time, filled while it runs and handed to every {@link Listener} when it ends.
+ */
+public class SyncMetrics {
+    public static final int HANDSHAKE = 0, MANIFEST = 1, TRANSFER = 2, APPLY = 3, PHASES = 4;
+    public static final String[] PHASE_NAMES = { "handshake", "manifest", "transfer", "apply" };
+
+    /**
+     * Add it to {@link MindustrySyncProject#syncListeners}, it's called from sync threads.
+     */
+    public interface Listener {
+        /** A keep-alive answered while the sync waited to be accepted. */
+        default void onRtt(final SyncMetrics metrics, final long nanos) {}
+
+        /** The sync ended, {@link #error} tells if it failed. */
+        void onFinished(final SyncMetrics metrics);
+    }
+
+    /**
+     * Counters of one {@link ISyncData}, see {@link ISyncContext#getMetrics()}.
+     */
+    public static class Data {
+        public final String name;
+        public final AtomicLong bytesIn = new AtomicLong(), bytesOut = new AtomicLong(), filesIn = new AtomicLong(), filesOut = new AtomicLong();
+        /** By the data's own thread, -1 where the JVM can't tell. */
+        public final AtomicLong allocated = new AtomicLong(-1);
+        private final AtomicLongArray nanos = new AtomicLongArray(PHASES);
+
+        // The data's own thread only.
+        private int phase = -1;
+        private long since;
+
+        public Data(final String name) { this.name = name; }
+
+        /**
+         * Ends the current phase of the data's thread and starts p, -1 only ends it.
+         */
+        public void phase(final int p) {
+            final long now = System.nanoTime();
+            if (phase != -1)
+                nanos.addAndGet(phase, now - since);
+            phase = p;
+            since = now;
+        }
+
+        /**
+         * Time spent elsewhere, like on the main thread, it may overlap the current phase.
+         */
+        public void add(final int p, final long n) { nanos.addAndGet(p, n); }
+
+        public long nanos(final int p) { return nanos.get(p); }
+    }
+
+    public final UUID peer;
+    public final boolean host;
+    /** Keep-alives come before it, the service moves it to when the sync starts. */
+    public volatile long start = System.nanoTime();
+    public final AtomicLong rttCount = new AtomicLong(), rttTotal = new AtomicLong();
+    public volatile long handshake = 0, duration = -1;
+    public volatile Throwable error = null;
+
+    private final LinkedHashMap<String, Data> data = new LinkedHashMap<>();
+
+    public SyncMetrics(final UUID peer, final boolean host) {
+        this.peer = peer;
+        this.host = host;
+    }
+
+    public Data data(final String name) {
+        synchronized (data) {
+            Data d = data.get(name);
+            if (d == null)
+                data.put(name, d = new Data(name));
+            return d;
+        }
+    }
+
+    public List<Data> data() {
+        synchronized (data) {
+            return new ArrayList<>(data.values());
+        }
+    }
+
+    public void rtt(final long nanos, final List<Listener> listeners) {
+        rttCount.incrementAndGet();
+        rttTotal.addAndGet(nanos);
+        for (final Listener l : listeners)
+            l.onRtt(this, nanos);
+    }
+
+    public void finish(final Throwable error, final List<Listener> listeners) {
+        this.error = error;
+        duration = System.nanoTime() - start;
+        for (final Listener l : listeners)
+            l.onFinished(this);
+    }
+
+    /**
+     * Bytes the current thread allocated so far, -1 where the JVM can't tell, like on Android.
+     */
+    public static long allocated() {
+        try {
+            final java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+            if (b instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean) b).getThreadAllocatedBytes(Thread.currentThread().getId());
+        } catch (final Throwable ignored) {
+        }
+        return -1;
+    }
+
+    public long bytes() {
+        long b = 0;
+        for (final Data d : data())
+            b += d.bytesIn.get() + d.bytesOut.get();
+        return b;
+    }
+
+    public long files() {
+        long f = 0;
+        for (final Data d : data())
+            f += d.filesIn.get() + d.filesOut.get();
+        return f;
+    }
+
+    /**
+     * One line per data, for the settings of a service.
+     */
+    public String summary() {
+        final double s = Math.max(1, duration < 0 ? System.nanoTime() - start : duration) / 1e9;
+        final StringBuilder b = new StringBuilder();
+        b.append(String.format(Locale.ROOT, "%.2f s, %.1f KB/s, %.1f files/s", s, bytes() / 1024.0 / s, files() / s));
+        if (rttCount.get() > 0)
+            b.append(String.format(Locale.ROOT, ", RTT %.1f ms", rttTotal.get() / 1e6 / rttCount.get()));
+        b.append(String.format(Locale.ROOT, "\n%s: %.0f ms", PHASE_NAMES[HANDSHAKE], handshake / 1e6));
+        for (final Data d : data()) {
+            b.append('\n').append(d.name.startsWith("@") && Core.bundle != null ? Core.bundle.get(d.name.substring(1)) : d.name).append(':');
+            for (int p = MANIFEST; p < PHASES; p++)
+                b.append(String.format(Locale.ROOT, " %s %.0f ms,", PHASE_NAMES[p], d.nanos(p) / 1e6));
+            b.append(String.format(Locale.ROOT, " %d / %d KB, %d / %d files", d.bytesIn.get() / 1024, d.bytesOut.get() / 1024, d.filesIn.get(), d.filesOut.get()));
+            if (d.allocated.get() >= 0)
+                b.append(String.format(Locale.ROOT, ", allocated %d KB", d.allocated.get() / 1024));
+        }
+        if (error != null)
+            b.append('\n').append(error);
+        return b.toString();
+    }
+}
\ No newline at end of file
@@ -2,36 +2,66 @@ package msp.base;
 
 import arc.ApplicationListener;
 import arc.Core;
+import arc.Events;
 import arc.files.Fi;
+import arc.graphics.Color;
 import arc.scene.Element;
 import arc.scene.style.Drawable;
+import arc.scene.ui.Label;
 import arc.scene.ui.TextButton;
 import arc.util.Log;
 import mindustry.Vars;
+import mindustry.game.EventType;
 import mindustry.gen.Icon;
 import mindustry.ui.dialogs.BaseDialog;
 import msp.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.UUID;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 public class LocalSyncService implements ISyncService {
     public static final byte[]
             NET_ID = { -124, 54, 35, 83, -98, 93, 48, -101, 93, -8, 54, 93, 48, 54, 17, -92 },
-            VER    = { 0, 0, 0, 0 };
+            VER    = { 0, 0, 0, 10 };
 
-    public static final int BUFF_SIZE = 1024 * 1024; // 1KB
+    /** 1MB for transfers, connections start with 4KB for the handshake. Both come from {@link BufferPool#shared}. */
+    public static final int BUFF_SIZE = 1024 * 1024, HANDSHAKE_BUFF_SIZE = 4 * 1024;
+
+    public static final int HANDSHAKE_TIMEOUT = 5000, PING_INTERVAL = 15000, PING_TIMEOUT = 20000;
+    public static final int RECENT_SIZE = 64;
+    public static final int ANNOUNCE_INTERVAL = 5000, DEVICE_TTL = 3 * ANNOUNCE_INTERVAL, LOCAL_ADDRESSES_TTL = 30000;
+
+    public static final String STRIPES_KEY = "msp-stripes", STRIPE_THRESHOLD_KEY = "msp-stripe-threshold";
+    /** 1 stripe keeps every file on the sync connection. The threshold is in MB. */
+    public static final int DEFAULT_STRIPES = 1, MAX_STRIPES = 16, DEFAULT_STRIPE_THRESHOLD = 16;
+
+    /** Trusted devices in sight get changed data pushed, and their syncs are accepted without asking. */
+    public static final String AUTO_SYNC_KEY = "msp-auto-sync";
+    /** Trusted devices prove they have the shared key with an HMAC of both nonces, the tag tells the sides apart. */
+    public static final int NONCE_SIZE = 16, MAC_SIZE = 32;
+    private static final byte HOST_PROOF = 1, CLIENT_PROOF = 2;
+    /** Between tries to push to a trusted device that was busy or away. */
+    public static final int AUTO_RETRY = 30000;
 
     public final String ip = "230.0.0.0";
     public final int port = 34554;
 
     public final SyncVar<Exception> ex = new SyncVar<>();
+    /** Of the last sync, shown in the settings. */
+    public final SyncVar<SyncMetrics> lastMetrics = new SyncVar<>();
 
     public final byte[] deviceId;
     public final SyncVar<String> deviceName;
@@ -39,6 +69,7 @@ public class LocalSyncService implements ISyncService {
     public Thread server, server2;
     public final SyncVar<MulticastSocket> serverSocket = new SyncVar<>();
     public final SyncVar<ServerSocket> tcpServer = new SyncVar<>();
+    private volatile Selector selector;
 
     private final AtomicBoolean acceptJustSync = new AtomicBoolean(false);
 
@@ -46,19 +77,63 @@ public class LocalSyncService implements ISyncService {
     private Runnable onClose = null;
 
     private final Object onCode0Locker = new Object();
-    private final ArrayList<Device> onCode0List = new ArrayList<>();
+    /** Discovered devices by id, stale ones are evicted by the discovery thread. */
+    private final ConcurrentHashMap<UUID, Device> devices = new ConcurrentHashMap<>();
+    /** Owned by the discovery thread, a direct-mapped cache so repeated announcements don't allocate a key. */
+    private final Device[] recent = new Device[RECENT_SIZE];
+    private volatile Set<InetAddress> localAddresses = Collections.emptySet();
     private onDevicePacket onCode0 = null;
     private onDevicePacket onCode1 = null;
 
     private final Map<String, ISyncData> dm;
+    private final List<SyncMetrics.Listener> listeners;
+    private final MindustrySyncProject msp;
+
+    private volatile boolean autoSync = false;
+    private DirectoryWatcher watcher = null;
+    /** Changed data not pushed yet, by trusted device. */
+    private final HashMap<UUID, HashSet<String>> unsynced = new HashMap<>();
+    /** Pushes run one at a time here. */
+    private final ScheduledExecutorService auto = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "MSP-Auto");
+        t.setDaemon(true);
+        return t;
+    });
+    /** Owned by the auto thread. */
+    private boolean retrying = false;
+
+    /** Receivers of striped files waiting for their connections, by token. */
+    private final ConcurrentHashMap<UUID, LinkedBlockingQueue<Stripe>> stripes = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    /** Accepted syncs run here, everything before that is handled by the selector loop. */
+    private final ExecutorService workers = Executors.newFixedThreadPool(2, r -> {
+        final Thread t = new Thread(r, "MSP-Sync");
+        t.setDaemon(true);
+        return t;
+    });
 
     private interface onDevicePacket { void run(final Device device); }
+    private interface Part { void run(final int i) throws Exception; }
+
+    private static class Stripe {
+        public final Socket socket;
+        public final InputStream in;
+
+        public Stripe(final Socket socket, final InputStream in) {
+            this.socket = socket;
+            this.in = in;
+        }
+    }
 
     private static class Device {
-        public final String platform, name, uuid;
+        public final String platform, name;
+        public final UUID uuid;
         public final InetAddress ip;
+        public volatile long lastSeen;
+        public volatile boolean removed = false;
 
-        public Device(final String uuid, final String platform, final String name, final InetAddress ip) {
+        public Device(final UUID uuid, final String platform, final String name, final InetAddress ip) {
             this.uuid = uuid;
             this.platform = platform;
             this.name = name;
@@ -67,7 +142,7 @@ public class LocalSyncService implements ISyncService {
 
         @Override
         public boolean equals(final Object obj) {
-            if (obj instanceof String)
+            if (obj instanceof UUID)
                 return uuid.equals(obj);
             if (obj instanceof Device)
                 return uuid.equals(((Device) obj).uuid);
@@ -86,31 +161,54 @@ public class LocalSyncService implements ISyncService {
         }
     }
 
-    private static class OutputWriter implements Closeable {
-        public final byte[] buf = new byte[BUFF_SIZE];
+    /** Package-private for the benchmarks. */
+    static class OutputWriter implements Closeable {
+        /** Grows to {@link #BUFF_SIZE} once it's filled, given back on close. */
+        public byte[] buf = BufferPool.shared.take(HANDSHAKE_BUFF_SIZE);
         public final OutputStream os;
+        /** Null if the socket has no channel, file bodies are copied through {@link #buf} then. */
+        public final WritableByteChannel ch;
         public int i = 0;
 
-        public OutputWriter(final OutputStream os) { this.os = os; }
-
-        public void write(byte b) { buf[i++] = b; }
-        public void write(int b) { buf[i++] = (byte) b; }
+        public OutputWriter(final Socket socket) throws IOException {
+            os = socket.getOutputStream();
+            ch = socket.getChannel();
+        }
 
-        public void write(final byte[] arr) {
-            for (final byte b : arr)
-                buf[i++] = b;
+        public void write(byte b) throws IOException {
+            if (i == buf.length)
+                spill();
+            buf[i++] = b;
         }
 
-        public void write(final byte[] arr, int off, int len) {
-            for (len += off; off < len; off++)
-                write(off);
+        public void write(int b) throws IOException { write((byte) b); }
+
+        public void write(final byte[] arr) throws IOException { write(arr, 0, arr.length); }
+
+        public void write(final byte[] arr, int off, int len) throws IOException {
+            if (len >= buf.length) {
+                spill();
+                if (len >= buf.length) {
+                    os.write(arr, off, len);
+                    return;
+                }
+            }
+            while (len > 0) {
+                if (i == buf.length)
+                    spill();
+                final int n = Math.min(len, buf.length - i);
+                System.arraycopy(arr, off, buf, i, n);
+                i += n;
+                off += n;
+                len -= n;
+            }
         }
 
-        public void write(final String str) {
+        public void write(final String str) throws IOException {
             write(str.getBytes(StandardCharsets.UTF_8));
         }
 
-        public void writeString(final String str) {
+        public void writeString(final String str) throws IOException {
             final byte[] d = str.getBytes(StandardCharsets.UTF_8);
             if (d.length > 255)
                 throw new RuntimeException("String Length is more than 255");
@@ -118,24 +216,38 @@ public class LocalSyncService implements ISyncService {
             write(d);
         }
 
-        public void writeInt(final int value) {
+        public void writeInt(final int value) throws IOException {
+            if (buf.length - i < 4)
+                spill();
             buf[i++] = (byte)(value >>> 24);
             buf[i++] = (byte)(value >>> 16);
             buf[i++] = (byte)(value >>> 8);
             buf[i++] = (byte)value;
         }
 
-        public void sendFile(final Fi file) throws IOException {
+        public void writeLong(final long value) throws IOException {
+            if (buf.length - i < 8)
+                spill();
+            for (int s = 56; s >= 0; s -= 8)
+                buf[i++] = (byte)(value >>> s);
+        }
+
+        /**
+         * Writes a region of the file, straight from the file to the socket when there's a channel.
+         */
+        public void transfer(final FileChannel fc, long pos, long count) throws IOException {
             flush();
-            try (final InputStream r = file.read()) {
-                int l;
-                while ((l = r.read(buf, 4, buf.length - 4)) != -1) {
-                    writeInt(l);
-                    i += l;
-                    flush();
-                }
-                writeInt(-1);
-                flush();
+            if (ch != null) {
+                transferTo(fc, pos, count, ch);
+                return;
+            }
+            while (count > 0) {
+                final int n = fc.read(ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, count)), pos);
+                if (n <= 0)
+                    throw new IOException("File is shorter than expected");
+                os.write(buf, 0, n);
+                pos += n;
+                count -= n;
             }
         }
 
@@ -145,34 +257,83 @@ public class LocalSyncService implements ISyncService {
             i = 0;
         }
 
-        @Override public void close() throws IOException { os.close(); }
+        /**
+         * A full buffer means a transfer, not a handshake.
+         */
+        private void spill() throws IOException {
+            flush();
+            buf = grow(buf);
+        }
+
+        /**
+         * Only by the thread that writes, the buffer goes back to the pool.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                os.close();
+            } finally {
+                if (buf != null)
+                    BufferPool.shared.give(buf);
+                buf = null;
+            }
+        }
     }
 
-    private static class InputReader implements Closeable {
-        public final byte[] buf = new byte[BUFF_SIZE];
+    static class InputReader implements Closeable {
+        /** Grows to {@link #BUFF_SIZE} once a read fills it, given back on close. */
+        public byte[] buf = BufferPool.shared.take(HANDSHAKE_BUFF_SIZE);
         private final InputStream is;
         private int i = 0, l = 0;
 
         public InputReader(final InputStream is) { this.is = is; }
 
         public byte readByte() throws IOException {
-            if (i == l) {
-                l = is.read(buf, i = 0, buf.length);
-                if (l == -1)
-                    throw new IOException("Negative length!");
-            }
+            if (i == l)
+                fill();
             return buf[i++];
         }
 
+        private void fill() throws IOException {
+            if (l == buf.length)
+                buf = grow(buf);
+            l = is.read(buf, i = 0, buf.length);
+            if (l == -1)
+                throw new IOException("Negative length!");
+        }
+
         public byte[] readBuf(final byte[] buf, int off, int len) throws IOException {
-            for (len += off; off < len; off++)
-                buf[off] = readByte();
+            while (len > 0) {
+                if (i == l) {
+                    // Large reads skip the buffer.
+                    if (len >= this.buf.length) {
+                        final int n = is.read(buf, off, len);
+                        if (n == -1)
+                            throw new IOException("Negative length!");
+                        off += n;
+                        len -= n;
+                        continue;
+                    }
+                    fill();
+                }
+                final int n = Math.min(len, l - i);
+                System.arraycopy(this.buf, i, buf, off, n);
+                i += n;
+                off += n;
+                len -= n;
+            }
             return buf;
         }
 
         public byte[] readBuf(final int len) throws IOException { return readBuf(new byte[len], 0, len); }
 
         public boolean tryRead(final byte[] data) throws IOException {
+            if (l - i >= data.length) {
+                for (int j = 0; j < data.length; j++)
+                    if (data[j] != buf[i++])
+                        return false;
+                return true;
+            }
             for (final byte b : data)
                 if (b != readByte())
                     return false;
@@ -180,195 +341,188 @@ public class LocalSyncService implements ISyncService {
         }
 
         public int readInt() throws IOException {
+            if (l - i >= 4)
+                return ((buf[i++] & 0xFF) << 24) |
+                        ((buf[i++] & 0xFF) << 16) |
+                        ((buf[i++] & 0xFF) << 8 ) |
+                        (buf[i++] & 0xFF);
             return ((readByte() & 0xFF) << 24) |
                     ((readByte() & 0xFF) << 16) |
                     ((readByte() & 0xFF) << 8 ) |
                     (readByte() & 0xFF);
         }
 
-        public UUID readUUID() throws IOException {
-            return UUID.nameUUIDFromBytes(readBuf(16));
+        public long readLong() throws IOException {
+            if (l - i >= 8) {
+                long v = 0;
+                for (final int e = i + 8; i < e; i++)
+                    v = (v << 8) | (buf[i] & 0xFF);
+                return v;
+            }
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
         }
 
+        public UUID readUUID() throws IOException { return new UUID(readLong(), readLong()); }
+
         public String readString() throws IOException {
-            return new String(readBuf(readByte()), StandardCharsets.UTF_8);
+            final int len = readByte() & 0xFF;
+            if (l - i >= len) {
+                final String r = new String(buf, i, len, StandardCharsets.UTF_8);
+                i += len;
+                return r;
+            }
+            return new String(readBuf(len), StandardCharsets.UTF_8);
         }
 
-        public void readFile(final OutputStream o) throws IOException {
-            int s;
-            while (true) {
-                s = readInt();
-                if (s == -1)
-                    break;
-                if (s < -1)
-                    throw new IOException("Negative part size: " + s);
-                while (s > 0) {
-                    final int d = l - i;
-                    if (s >= d) {
-                        s -= d;
-                        if (o != null) {
-                            o.write(buf, i, d);
-                            o.flush();
-                        }
-
-                        l = is.read(buf, i = 0, buf.length);
-                        if (l == -1)
-                            throw new IOException("Negative length!");
-                        continue;
-                    }
-                    if (o != null) {
-                        o.write(buf, i, s);
-                        o.flush();
-                    }
-                    i += s;
-                    break;
-                }
+        /**
+         * Only by the thread that reads, the buffer goes back to the pool.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                is.close();
+            } finally {
+                if (buf != null)
+                    BufferPool.shared.give(buf);
+                buf = null;
             }
         }
+    }
+
+    /**
+     * An empty buffer grown to {@link #BUFF_SIZE}, the same one if the pool is full.
+     */
+    private static byte[] grow(final byte[] buf) {
+        if (buf.length >= BUFF_SIZE)
+            return buf;
+        final byte[] b = BufferPool.shared.take(BUFF_SIZE);
+        if (b.length <= buf.length) {
+            BufferPool.shared.give(b);
+            return buf;
+        }
+        BufferPool.shared.give(buf);
+        return b;
+    }
 
-        @Override public void close() throws IOException { is.close(); }
+    /**
+     * A connection served by the selector loop until its sync is accepted.
+     */
+    private static class Pending {
+        public static final int HANDSHAKE = 0, WAITING = 1, CONFIRM = 2, HANDOFF = 3, CLOSING = 4, STRIPE = 5, PROVE = 6;
+        public static final int ACCEPT = 1, REJECT = 2;
+
+        public final SocketChannel ch;
+        public final Selector selector;
+        // NET_ID (16) + VER (4) + CODE (1) + DEVICE_ID (16) + NAME_LENGTH (1) + NAME (0-255) + NONCE (16)
+        public final ByteBuffer in = ByteBuffer.allocate(512), out = ByteBuffer.allocate(512);
+        public final AtomicInteger decision = new AtomicInteger(0);
+        public final SyncVar<ABaseDialog> window = new SyncVar<>();
+
+        public int state = HANDSHAKE;
+        /** The device asking for a sync. */
+        public UUID peer = null;
+        public String name = null;
+        /** Set for connections carrying a stripe of a file. */
+        public UUID token = null;
+        public SyncMetrics metrics = null;
+        public long deadline, nextPing = Long.MAX_VALUE, pingSent;
+        public boolean owner = false, pinged = false;
+        /** Accepted, or being proven, without a dialog, errors are only logged. */
+        public boolean auto = false;
+        /** What a trusted peer has to answer the challenge with. */
+        public byte[] proof = null;
+
+        public Pending(final SocketChannel ch, final Selector selector, final long deadline) {
+            this.ch = ch;
+            this.selector = selector;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Called from the UI, the selector loop picks it up.
+         */
+        public void decide(final int decision) {
+            this.decision.set(decision);
+            selector.wakeup();
+        }
     }
 
     public LocalSyncService(final MindustrySyncProject msp) {
         deviceId = msp.deviceId.get();
         deviceName = msp.deviceName;
         dm = msp.syncDataList;
+        listeners = msp.syncListeners;
+        this.msp = msp;
+        // The data is added after the services.
+        Events.on(EventType.ClientLoadEvent.class, e -> updateAutoSync());
 
         server2 = new Thread(() -> {
             final AtomicBoolean cp = new AtomicBoolean(false);
-            try (final ServerSocket s = new ServerSocket()) {
-                tcpServer.set(s);
-                s.bind(new InetSocketAddress("0.0.0.0", port));
-                while (true) {
-                    final Socket c = s.accept();
-                    new Thread(() -> {
-                        final SyncVar<ABaseDialog> window = new SyncVar<>();
-                        final AtomicBoolean syncing = new AtomicBoolean(false);
-                        try (c) {
-                            c.setSoTimeout(5000);
-                            final OutputWriter w = new OutputWriter(c.getOutputStream());
-                            final InputReader r = new InputReader(c.getInputStream());
-                            if (!r.tryRead(NET_ID) || !r.tryRead(VER))
-                                return;
-                            byte o = r.readByte();
-                            switch (o) {
-                                case 3:
-                                    final UUID uuid = r.readUUID();
-                                    final String name = r.readString();
-
-                                    if (!acceptJustSync.get()) {
-                                        w.write(2);
-                                        w.writeString("sync-rejected");
-                                        w.flush();
-                                        break;
-                                    }
-
-                                    synchronized (cp) {
-                                        if (cp.get()) {
-                                            w.write(2);
-                                            w.writeString("server.kicked.playerLimit");
-                                            w.flush();
-                                            break;
-                                        }
-                                        cp.set(true);
-                                        window.set(new ABaseDialog("@sync-request"));
-                                    }
-
-                                    final AtomicBoolean
-                                            a = new AtomicBoolean(false),
-                                            f = new AtomicBoolean(false);
-
-                                    synchronized (f) {
-                                        Core.app.post(() -> {
-                                            final ABaseDialog d = window.get();
-                                            d.cont.defaults().size(280f, 60f);
-                                            d.cont.add(Core.bundle.get("sync-device-name") + ": " + name).row();
-                                            d.cont.add("UUID: " + uuid).row();
-                                            d.cont.button("@sync-reject", Icon.exit, () -> {
-                                                synchronized (f) {
-                                                    f.set(true);
-                                                    f.notifyAll();
-                                                }
-                                                d.hide();
-                                            });
-                                            d.cont.button("@sync-accept", Icon.ok, () -> {
-                                                window.set(new ABaseDialog("@syncing"));
-                                                synchronized (f) {
-                                                    a.set(true);
-                                                    f.set(true);
-                                                    f.notifyAll();
-                                                }
-                                                window.get().show();
-                                                d.hide();
-                                            }).row();
-                                            d.show();
-                                        });
-
-                                        c.setSoTimeout(20000);
-                                        while (true) {
-                                            f.wait(15000);
-                                            if (f.get()) {
-                                                if (a.get()) {
-                                                    w.write(3);
-                                                    w.flush();
-                                                    final byte b = r.readByte();
-                                                    if (b != 3) {
-                                                        final String text = b == 2 ? Core.bundle.get(r.readString()) : Core.bundle.format("sync-unknown-code", b);
-                                                        cp.set(false);
-                                                        Core.app.post(() -> {
-                                                            window.get().hide();
-                                                            Vars.ui.showInfo(text);
-                                                        });
-                                                        break;
-                                                    }
-                                                    Core.app.post(() -> window.get().cont.defaults().size(280f, 60f));
-                                                    syncing.set(true);
-                                                    sync(w, r, window.get(), true);
-                                                } else {
-                                                    w.write(2);
-                                                    w.writeString("sync-rejected");
-                                                    w.flush();
-                                                }
-                                                cp.set(false);
-                                                break;
-                                            }
-                                            w.write(4);
-                                            w.flush();
+            try (final Selector selector = Selector.open(); final ServerSocketChannel sc = ServerSocketChannel.open()) {
+                this.selector = selector;
+                tcpServer.set(sc.socket());
+                sc.socket().bind(new InetSocketAddress("0.0.0.0", port));
+                sc.configureBlocking(false);
+                sc.register(selector, SelectionKey.OP_ACCEPT);
+
+                final ArrayList<SelectionKey> handoff = new ArrayList<>();
+                while (!Thread.currentThread().isInterrupted()) {
+                    // Wakes up at least once a second for timeouts and pings.
+                    selector.select(1000);
+                    final long now = System.currentTimeMillis();
+
+                    for (final Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                        final SelectionKey k = it.next();
+                        it.remove();
+                        if (!k.isValid())
+                            continue;
+                        if (k.isAcceptable()) {
+                            final SocketChannel c = sc.accept();
+                            if (c == null)
+                                continue;
+                            c.configureBlocking(false);
+                            c.register(selector, SelectionKey.OP_READ, new Pending(c, selector, now + HANDSHAKE_TIMEOUT));
+                            continue;
+                        }
+                        final Pending p = (Pending) k.attachment();
+                        try {
+                            if (k.isWritable())
+                                flushOut(k, p);
+                            if (k.isValid() && k.isReadable())
+                                onRead(k, p, cp, now, handoff);
+                        } catch (final IOException ex) {
+                            fail(k, p, cp, ex);
+                        }
+                    }
 
-                                            final byte b = r.readByte();
-                                            if (b == 4)
-                                                continue;
-                                            if (b == 2)
-                                                break;
-                                            w.write(2);
-                                            w.writeString("sync-unknown-code");
-                                            w.write(b);
-                                            w.flush();
-                                            break;
-                                        }
-                                    }
-                                    break;
-                                default:
-                                    w.write(2);
-                                    w.writeString("sync-unknown-code");
-                                    w.write(o);
-                                    w.flush();
-                                    break;
-                            }
-                        } catch (final Exception ex) {
-                            Log.err(ex);
-                            if (window.get() != null)
-                                Core.app.post(() -> {
-                                    window.get().hide();
-                                    window.set(null);
-                                    cp.set(false);
-                                    Vars.ui.showException(ex);
-                                });
+                    for (final SelectionKey k : selector.keys()) {
+                        if (!k.isValid() || !(k.attachment() instanceof Pending))
+                            continue;
+                        final Pending p = (Pending) k.attachment();
+                        try {
+                            tick(k, p, cp, now, handoff);
+                        } catch (final IOException ex) {
+                            fail(k, p, cp, ex);
                         }
-                    }).start();
+                    }
+
+                    if (handoff.isEmpty())
+                        continue;
+                    // A channel can't go back to blocking mode until the selector drops its key.
+                    for (final SelectionKey k : handoff)
+                        k.cancel();
+                    selector.selectNow();
+                    for (final SelectionKey k : handoff) {
+                        final Pending p = (Pending) k.attachment();
+                        if (p.token != null)
+                            startStripe(p);
+                        else
+                            startSync(p, cp);
+                    }
+                    handoff.clear();
                 }
             } catch (final Exception ex) {
-                if (ex.getMessage().equals("Socket closed"))
+                if (ex instanceof ClosedChannelException || "Socket closed".equals(ex.getMessage()))
                     return;
                 server.interrupt();
                 final MulticastSocket s = serverSocket.get();
@@ -382,99 +536,68 @@ public class LocalSyncService implements ISyncService {
             }
         });
         server = new Thread(() -> {
-            while (true)
-                try (final MulticastSocket socket = new MulticastSocket(port)) {
-                    serverSocket.set(socket);
-                    socket.setReuseAddress(false);
-                    InetSocketAddress group = new InetSocketAddress(ip, port);
-                    socket.joinGroup(group, null);
-                    final byte[] buf = new byte[295];
-                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                    socket.receive(packet);
+            try (final MulticastSocket socket = new MulticastSocket(port)) {
+                serverSocket.set(socket);
+                socket.setReuseAddress(false);
+                socket.setSoTimeout(ANNOUNCE_INTERVAL);
+                final InetSocketAddress group = new InetSocketAddress(ip, port);
+                socket.joinGroup(group, null);
 
-                    if (NetworkInterface.getByInetAddress(packet.getAddress()) != null)
-                        continue;
+                final byte[] buf = new byte[295];
+                final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                long nextAnnounce = 0, nextLocalRefresh = 0;
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (now >= nextLocalRefresh) {
+                        nextLocalRefresh = now + LOCAL_ADDRESSES_TTL;
+                        refreshLocalAddresses();
+                    }
+                    if (now >= nextAnnounce) {
+                        nextAnnounce = now + ANNOUNCE_INTERVAL;
+                        announce(socket, group.getAddress(), now);
+                    }
 
-                    if (packet.getLength() < 21)
+                    packet.setLength(buf.length);
+                    try {
+                        socket.receive(packet);
+                    } catch (final SocketTimeoutException ex) {
                         continue;
+                    }
 
-                    if (
-                            eq(packet.getData(), packet.getOffset(), NET_ID) &&
-                                    eq(packet.getData(), 16 + packet.getOffset(), VER)
-                    ) {
-                        if (packet.getData()[20 + packet.getOffset()] == 0) {
-                            if (packet.getLength() < 40)
-                                continue;
-                            final onDevicePacket l;
-                            synchronized (onCode0Locker) {
-                                if (onCode0 == null)
-                                    continue;
-                                l = onCode0;
-                            }
+                    if (localAddresses.contains(packet.getAddress()))
+                        continue;
 
-                            final String uuid = UUID.nameUUIDFromBytes(Arrays.copyOfRange(packet.getData(), 21 + packet.getOffset(), 37 + packet.getOffset())).toString();
-                            final Device device = new Device(
-                                    uuid,
-                                    switch (packet.getData()[37 + packet.getOffset()]) {
-                                        case 1 -> "desktop";
-                                        case 2 -> "android";
-                                        case 3 -> "ios";
-                                        default -> "unknown";
-                                    },
-                                    new String(packet.getData(), 39 + packet.getOffset(), ((int) packet.getData()[38 + packet.getOffset()]) + 1, StandardCharsets.UTF_8),
-                                    packet.getAddress()
-                            );
-                            synchronized (onCode0List) {
-                                if (onCode0List.contains(device))
-                                    continue;
-                                onCode0List.add(device);
-                                l.run(device);
-                            }
-                        } else if (packet.getData()[20 + packet.getOffset()] == 1) {
-                            if (packet.getLength() < 37)
-                                continue;
-                            final onDevicePacket l;
-                            synchronized (onCode0Locker) {
-                                if (onCode1 == null)
-                                    continue;
-                                l = onCode1;
-                            }
-                            final String uuid = UUID.nameUUIDFromBytes(Arrays.copyOfRange(packet.getData(), 21 + packet.getOffset(), 37 + packet.getOffset())).toString();
-                            synchronized (onCode0List) {
-                                for (final Device d : onCode0List)
-                                    if (d.uuid.equals(uuid)) {
-                                        onCode0List.remove(d);
-                                        l.run(d);
-                                        break;
-                                    }
-                            }
-                        }
-                    }
-                    socket.leaveGroup(group, null);
-                } catch (final Exception ex) {
-                    if (ex.getMessage().equals("Socket closed"))
-                        break;
-                    server2.interrupt();
-                    final ServerSocket t = tcpServer.get();
-                    if (t != null)
-                        try {
-                            t.close();
-                        } catch (final IOException ex2) {
-                            Log.err(ex2);
-                        }
-                    synchronized (this.ex.locker) {
-                        if (this.ex.get() == null)
-                            this.ex.set(ex);
+                    onDiscovery(packet, System.currentTimeMillis());
+                }
+            } catch (final Exception ex) {
+                if ("Socket closed".equals(ex.getMessage()))
+                    return;
+                server2.interrupt();
+                final ServerSocket t = tcpServer.get();
+                if (t != null)
+                    try {
+                        t.close();
+                    } catch (final IOException ex2) {
+                        Log.err(ex2);
                     }
-                    Log.err(ex);
-                    break;
+                synchronized (this.ex.locker) {
+                    if (this.ex.get() == null)
+                        this.ex.set(ex);
                 }
+                Log.err(ex);
+            }
         });
         server.start();
         server2.start();
         Core.app.addListener(new ApplicationListener() {
             @Override
             public void exit() {
+                workers.shutdownNow();
+                auto.shutdownNow();
+                synchronized (unsynced) {
+                    if (watcher != null)
+                        watcher.stop();
+                }
                 server.interrupt();
                 server2.interrupt();
                 final MulticastSocket s = serverSocket.get();
@@ -503,52 +626,268 @@ public class LocalSyncService implements ISyncService {
 
     @Override public Drawable getIcon() { return Icon.upload; }
 
-    private static class LSSCtx implements ISyncContext {
+    static class LSSCtx implements ISyncContext {
         private final boolean h;
         private final BaseDialog d;
         private final InputReader r;
         private final OutputWriter w;
+        private final IFileStriper s;
+        private final UUID peer;
+        private final DirectoryWatcher watcher;
+
+        public LSSCtx(final boolean host, final InputReader reader, final OutputWriter writer, final BaseDialog dialog, final IFileStriper striper, final UUID peer) {
+            this(host, reader, writer, dialog, striper, peer, null);
+        }
 
-        public LSSCtx(final boolean host, final InputReader reader, final OutputWriter writer, final BaseDialog dialog) {
+        public LSSCtx(final boolean host, final InputReader reader, final OutputWriter writer, final BaseDialog dialog, final IFileStriper striper, final UUID peer,
+                      final DirectoryWatcher watcher) {
             h = host;
             r = reader;
             w = writer;
             d = dialog;
+            s = striper;
+            this.peer = peer;
+            this.watcher = watcher;
         }
 
         @Override public boolean isHost() { return h; }
         @Override public boolean isStatic() { return false; }
 
         @Override public BaseDialog getDialog() { return d; }
+        @Override public IFileStriper getStriper() { return s; }
+        @Override public UUID getPeerId() { return peer; }
+
+        @Override
+        public void wrote(final Fi file) {
+            if (watcher != null)
+                watcher.wrote(file);
+        }
 
-        @Override public void write(final byte b) { w.write(b); }
-        @Override public void write(final int b) { w.write(b); }
-        @Override public void write(final byte[] arr) { w.write(arr); }
-        @Override public void write(final byte[] arr, final int off, final int len) { w.write(arr, off, len); }
-        @Override public void write(final String str) { w.write(str); }
-        @Override public void writeString(final String str) { w.writeString(str); }
-        @Override public void writeInt(final int value) { w.writeInt(value); }
-        @Override public void sendFile(final Fi file) throws IOException { w.sendFile(file); }
+        @Override public void write(final byte b) throws IOException { w.write(b); }
+        @Override public void write(final int b) throws IOException { w.write(b); }
+        @Override public void write(final byte[] arr) throws IOException { w.write(arr); }
+        @Override public void write(final byte[] arr, final int off, final int len) throws IOException { w.write(arr, off, len); }
+        @Override public void write(final String str) throws IOException { w.write(str); }
+        @Override public void writeString(final String str) throws IOException { w.writeString(str); }
+        @Override public void writeInt(final int value) throws IOException { w.writeInt(value); }
+        @Override public void writeLong(final long value) throws IOException { w.writeLong(value); }
+        @Override public void write(final FileChannel file, final long position, final long count) throws IOException
+                            { w.transfer(file, position, count); }
         @Override public void flush() throws IOException { w.flush(); }
 
         @Override public byte readByte() throws IOException { return r.readByte(); }
         @Override public byte[] readBuf(final byte[] buf, final int off, final int len) throws IOException
                             { return r.readBuf(buf, off, len); }
         @Override public byte[] readBuf(final int len) throws IOException { return r.readBuf(len); }
+        @Override public void readFully(final byte[] buf, final int off, final int len) throws IOException { r.readBuf(buf, off, len); }
+        @Override public void readFully(final byte[] buf) throws IOException { r.readBuf(buf, 0, buf.length); }
         @Override public boolean tryRead(final byte[] data) throws IOException { return r.tryRead(data); }
         @Override public int readInt() throws IOException { return r.readInt(); }
+        @Override public long readLong() throws IOException { return r.readLong(); }
         @Override public UUID readUUID() throws IOException { return r.readUUID(); }
         @Override public String readString() throws IOException { return r.readString(); }
-        @Override public void readFile(final OutputStream o) throws IOException { r.readFile(o); }
     }
 
-    public void sync(final OutputWriter w, final InputReader r, final ABaseDialog d, final boolean host) throws IOException {
-        final LSSCtx ctx = new LSSCtx(host, r, w, d);
+    /**
+     * Splits big files into ranges, the sender connects once per range to the receiver's port.
+     * <br>
+     * Sync connection: TOKEN (16) + STRIPES (1)
+     * <br>
+     * Stripe connection: NET_ID (16) + VER (4) + CODE 5 (1) + TOKEN (16) + START (8) + LENGTH (8) + DATA, answered with 1.
+     */
+    private class Striper implements IFileStriper {
+        public final InetAddress peer;
+        public final int count;
+        public final long threshold;
+
+        public Striper(final InetAddress peer) {
+            this.peer = peer;
+            count = Math.min(MAX_STRIPES, Math.max(1, Core.settings.getInt(STRIPES_KEY, DEFAULT_STRIPES)));
+            threshold = Math.max(1, Core.settings.getInt(STRIPE_THRESHOLD_KEY, DEFAULT_STRIPE_THRESHOLD)) * 1024L * 1024L;
+        }
+
+        @Override public boolean accepts(final long length) { return count > 1 && length >= threshold; }
+
+        @Override
+        public void send(final ISyncContext c, final FileChannel file, final long length) throws IOException {
+            final byte[] token = new byte[16];
+            random.nextBytes(token);
+            c.write(token);
+            c.write(count);
+            c.flush();
+
+            final long size = (length + count - 1) / count;
+            parallel("MSP-Stripe", count, i -> {
+                final long start = Math.min(length, i * size), len = Math.min(size, length - start);
+                try (final SocketChannel ch = SocketChannel.open()) {
+                    final Socket s = ch.socket();
+                    s.setSoTimeout(20000);
+                    s.connect(new InetSocketAddress(peer, port), HANDSHAKE_TIMEOUT);
+                    final ByteBuffer b = ByteBuffer.allocate(53);
+                    b.put(NET_ID).put(VER).put((byte) 5).put(token).putLong(start).putLong(len);
+                    b.flip();
+                    while (b.hasRemaining())
+                        ch.write(b);
+                    transferTo(file, start, len, ch);
+                    if (s.getInputStream().read() != 1)
+                        throw new IOException("Stripe " + i + " wasn't confirmed");
+                }
+            });
+        }
+
+        @Override
+        public void receive(final ISyncContext c, final FileChannel file, final long length) throws IOException {
+            final byte[] token = c.readBuf(16);
+            final int n = c.readByte() & 0xFF;
+            if (n < 1 || n > MAX_STRIPES)
+                throw new IOException("Wrong stripe count: " + n);
+
+            final UUID key = new UUID(getLong(token, 0), getLong(token, 8));
+            final LinkedBlockingQueue<Stripe> queue = new LinkedBlockingQueue<>();
+            stripes.put(key, queue);
+            // Stripes that came before the token are parked in the selector loop.
+            final Selector selector = LocalSyncService.this.selector;
+            if (selector != null)
+                selector.wakeup();
+
+            final AtomicLong received = new AtomicLong();
+            try {
+                parallel("MSP-Stripe", n, i -> {
+                    final Stripe s = queue.poll(PING_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (s == null)
+                        throw new SocketTimeoutException("Stripe " + i + " didn't connect");
+                    try (final Socket socket = s.socket) {
+                        final DataInputStream in = new DataInputStream(s.in);
+                        long pos = in.readLong();
+                        final long len = in.readLong();
+                        if (pos < 0 || len < 0 || pos + len > length)
+                            throw new IOException("Wrong stripe range: " + pos + " + " + len);
+                        // A direct buffer spares every fresh stripe thread a temporary one of the JDK.
+                        final ByteBuffer b = BufferPool.shared.takeBuffer(ISyncContext.CHUNK_SIZE);
+                        final byte[] buf = b.hasArray() ? b.array() : BufferPool.shared.take(b.capacity());
+                        try {
+                            final int max = Math.min(buf.length, b.capacity());
+                            for (long left = len; left > 0;) {
+                                final int l = in.read(buf, 0, (int) Math.min(max, left));
+                                if (l == -1)
+                                    throw new EOFException("Stripe ended " + left + " bytes early");
+                                b.clear();
+                                if (b.hasArray())
+                                    b.limit(l);
+                                else {
+                                    b.put(buf, 0, l);
+                                    b.flip();
+                                }
+                                while (b.hasRemaining())
+                                    pos += file.write(b, pos);
+                                left -= l;
+                            }
+                        } finally {
+                            if (!b.hasArray())
+                                BufferPool.shared.give(buf);
+                            BufferPool.shared.give(b);
+                        }
+                        received.addAndGet(len);
+                        socket.getOutputStream().write(1);
+                        socket.getOutputStream().flush();
+                    }
+                });
+            } finally {
+                stripes.remove(key);
+            }
+            if (received.get() != length)
+                throw new IOException("Stripes carried " + received.get() + " of " + length + " bytes");
+        }
+    }
+
+    /**
+     * Runs every part on its own thread, waits for all of them and rethrows the first error.
+     */
+    private static void parallel(final String name, final int count, final Part part) throws IOException {
+        final SyncVar<Throwable> error = new SyncVar<>();
+        final Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final int n = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    part.run(n);
+                } catch (final Throwable ex) {
+                    synchronized (error.locker) {
+                        if (error.get() == null)
+                            error.set(ex);
+                    }
+                }
+            }, name + "-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        try {
+            for (final Thread t : threads)
+                t.join();
+        } catch (final InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+        final Throwable ex = error.get();
+        if (ex instanceof IOException)
+            throw (IOException) ex;
+        if (ex != null)
+            throw new IOException(ex);
+    }
+
+    /**
+     * Sends a region of the file straight to the channel.
+     */
+    private static void transferTo(final FileChannel fc, long pos, long count, final WritableByteChannel ch) throws IOException {
+        while (count > 0) {
+            final long n = fc.transferTo(pos, count, ch);
+            if (n < 0 || (n == 0 && pos >= fc.size()))
+                throw new IOException("File is shorter than expected");
+            pos += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * @param d null for background syncs.
+     * @param proven if the peer proved it has the key we trust it with.
+     * @param only data the client asks for, null for all.
+     */
+    public void sync(final Socket socket, final UUID peer, final String name, final OutputWriter w, final InputReader r, final ABaseDialog d,
+                     final boolean host, final boolean proven, final SyncMetrics metrics, final Set<String> only) throws IOException {
+        metrics.start = System.nanoTime();
+        lastMetrics.set(metrics);
+        // Files written by the sync aren't changes to push back, the user's edits meanwhile are.
+        final DirectoryWatcher dw;
+        synchronized (unsynced) {
+            dw = watcher;
+        }
+        if (dw != null)
+            dw.suspend();
+        try {
+            syncData(socket, peer, name, w, r, d, host, proven, metrics, only, dw);
+        } catch (final IOException | RuntimeException ex) {
+            metrics.finish(ex, listeners);
+            throw ex;
+        } finally {
+            if (dw != null)
+                dw.resume();
+        }
+        metrics.finish(null, listeners);
+    }
+
+    private void syncData(final Socket socket, final UUID peer, final String name, final OutputWriter w, final InputReader r, final ABaseDialog d,
+                          final boolean host, final boolean proven, final SyncMetrics metrics, final Set<String> only, final DirectoryWatcher dw) throws IOException {
+        final LSSCtx ctx = new LSSCtx(host, r, w, d, new Striper(socket.getInetAddress()), peer, dw);
+        final ArrayList<ISyncData> data = new ArrayList<>();
+        // Every sync agrees on a new key, trusting the device keeps it. Public keys only, someone listening doesn't learn it.
+        final KeyPair pair = keyPair();
+        final PublicKey peerKey;
 
         if (host) {
             for (final String dk : dm.keySet())
                 w.writeString(dk);
             w.writeString("");
+            writeKey(w, pair.getPublic());
             w.flush();
 
             while (true) {
@@ -557,9 +896,10 @@ public class LocalSyncService implements ISyncService {
                     break;
                 final ISyncData sd = dm.get(k);
                 if (sd == null)
-                    continue;
-                sd.sync(ctx);
+                    throw new IOException("Unknown sync data: " + k);
+                data.add(sd);
             }
+            peerKey = readKey(r);
         } else {
             final ArrayList<String> kl = new ArrayList<>();
             while (true) {
@@ -568,24 +908,790 @@ public class LocalSyncService implements ISyncService {
                     break;
                 kl.add(k);
             }
+            peerKey = readKey(r);
             for (final String k : kl) {
                 final ISyncData sd = dm.get(k);
-                if (sd == null)
+                if (sd == null || only != null && !only.contains(k))
                     continue;
                 w.writeString(k);
-                w.flush();
-                sd.sync(ctx);
+                data.add(sd);
             }
             w.writeString("");
+            writeKey(w, pair.getPublic());
             w.flush();
         }
+        final byte[] key = agree(pair, peerKey);
+
+        metrics.handshake = System.nanoTime() - metrics.start;
+
+        // Every data gets its own channel, so they run at the same time.
+        new Multiplexer(ctx, data, metrics).run();
 
-        Core.app.post(() -> {
+        if (d == null) {
+            Log.info("[MSP] Synced with " + name + " in the background.");
+            return;
+        }
+        MainThread.post(() -> {
             d.cont.add("@completed").row();
+            // A trusted device that didn't prove it has a different key, trusting it again pairs them.
+            if (!proven) {
+                final TextButton t = new TextButton(Core.bundle.get("sync-trust"));
+                t.changed(() -> {
+                    trust(peer, name, key);
+                    t.remove();
+                });
+                d.cont.add(t).row();
+            }
             d.addCloseButton();
         });
     }
 
+    private static KeyPair keyPair() throws IOException {
+        try {
+            final KeyPairGenerator g = KeyPairGenerator.getInstance("EC");
+            g.initialize(256);
+            return g.generateKeyPair();
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    // LENGTH (4) + X.509 KEY
+    private static void writeKey(final OutputWriter w, final PublicKey key) throws IOException {
+        final byte[] b = key.getEncoded();
+        w.writeInt(b.length);
+        w.write(b);
+    }
+
+    private static PublicKey readKey(final InputReader r) throws IOException {
+        final int l = r.readInt();
+        if (l <= 0 || l > 1024)
+            throw new IOException("Wrong key length: " + l);
+        try {
+            return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(r.readBuf(l)));
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static byte[] agree(final KeyPair pair, final PublicKey peer) throws IOException {
+        try {
+            final KeyAgreement a = KeyAgreement.getInstance("ECDH");
+            a.init(pair.getPrivate());
+            a.doPhase(peer, true);
+            return MessageDigest.getInstance("SHA-256").digest(a.generateSecret());
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Duplicate announcements of a known device are handled without allocating.
+     */
+    private void onDiscovery(final DatagramPacket packet, final long now) {
+        final byte[] data = packet.getData();
+        final int o = packet.getOffset();
+
+        if (packet.getLength() < 37 || !eq(data, o, NET_ID) || !eq(data, 16 + o, VER))
+            return;
+
+        final long msb = getLong(data, 21 + o), lsb = getLong(data, 29 + o);
+
+        if (data[20 + o] == 0) {
+            if (packet.getLength() < 40)
+                return;
+            final onDevicePacket l;
+            synchronized (onCode0Locker) {
+                if (onCode0 == null && !autoSync)
+                    return;
+                l = onCode0;
+            }
+
+            final Device known = recent(msb, lsb);
+            if (known != null) {
+                seen(known, l, now);
+                return;
+            }
+
+            final int nameLength = (data[38 + o] & 0xFF) + 1;
+            if (packet.getLength() < 39 + nameLength)
+                return;
+
+            final UUID uuid = new UUID(msb, lsb);
+            Device device = devices.get(uuid);
+            if (device == null) {
+                device = new Device(
+                        uuid,
+                        switch (data[37 + o]) {
+                            case 1 -> "desktop";
+                            case 2 -> "android";
+                            case 3 -> "ios";
+                            default -> "unknown";
+                        },
+                        new String(data, 39 + o, nameLength, StandardCharsets.UTF_8),
+                        packet.getAddress()
+                );
+                device.lastSeen = now;
+                final Device d = devices.putIfAbsent(uuid, device);
+                if (d == null) {
+                    if (l != null)
+                        l.run(device);
+                    if (autoSync && msp.trustedDevices.containsKey(uuid))
+                        schedule(0);
+                } else {
+                    device = d;
+                    seen(d, l, now);
+                }
+            } else
+                seen(device, l, now);
+            recent[slot(msb, lsb)] = device;
+        } else if (data[20 + o] == 1) {
+            final Device d = devices.remove(new UUID(msb, lsb));
+            if (d == null)
+                return;
+            d.removed = true;
+            final onDevicePacket l;
+            synchronized (onCode0Locker) {
+                l = onCode1;
+            }
+            if (l != null)
+                l.run(d);
+        }
+    }
+
+    /**
+     * While the device list is open or auto-sync is on, tells others we are still here and forgets devices that went silent.
+     */
+    private void announce(final MulticastSocket socket, final InetAddress group, final long now) {
+        final onDevicePacket l;
+        synchronized (onCode0Locker) {
+            if (onCode0 == null && !autoSync)
+                return;
+            l = onCode1;
+        }
+
+        try {
+            socket.send(justFind(group));
+        } catch (final IOException ex) {
+            Log.err(ex);
+        }
+
+        for (final Iterator<Device> it = devices.values().iterator(); it.hasNext();) {
+            final Device d = it.next();
+            if (now - d.lastSeen <= DEVICE_TTL)
+                continue;
+            it.remove();
+            d.removed = true;
+            if (l != null)
+                l.run(d);
+        }
+    }
+
+    /**
+     * Nothing evicts devices while the list is closed, one that expired meanwhile wasn't shown when it reopened.
+     */
+    private static void seen(final Device d, final onDevicePacket l, final long now) {
+        if (l != null && now - d.lastSeen > DEVICE_TTL)
+            l.run(d);
+        d.lastSeen = now;
+    }
+
+    /**
+     * The device from an earlier announcement with this id, looked up without allocating.
+     */
+    private Device recent(final long msb, final long lsb) {
+        final Device d = recent[slot(msb, lsb)];
+        if (d == null || d.removed || d.uuid.getMostSignificantBits() != msb || d.uuid.getLeastSignificantBits() != lsb)
+            return null;
+        return d;
+    }
+
+    private static int slot(final long msb, final long lsb) {
+        final long h = msb ^ lsb;
+        return (int) (h ^ (h >>> 32)) & (RECENT_SIZE - 1);
+    }
+
+    private static long getLong(final byte[] data, final int off) {
+        long v = 0;
+        for (int i = off; i < off + 8; i++)
+            v = (v << 8) | (data[i] & 0xFF);
+        return v;
+    }
+
+    private void refreshLocalAddresses() {
+        final HashSet<InetAddress> s = new HashSet<>();
+        try {
+            final Enumeration<NetworkInterface> it = NetworkInterface.getNetworkInterfaces();
+            if (it != null)
+                while (it.hasMoreElements())
+                    s.addAll(Collections.list(it.nextElement().getInetAddresses()));
+        } catch (final SocketException ex) {
+            Log.err(ex);
+        }
+        localAddresses = s;
+    }
+
+    private void onRead(final SelectionKey k, final Pending p, final AtomicBoolean cp, final long now, final ArrayList<SelectionKey> handoff) throws IOException {
+        if (p.ch.read(p.in) == -1) {
+            close(k, p);
+            release(p, cp, null);
+            return;
+        }
+        final byte[] a = p.in.array();
+        while (p.in.position() > 0 && (p.state == Pending.HANDSHAKE || p.state == Pending.PROVE || p.state == Pending.WAITING || p.state == Pending.CONFIRM)) {
+            final int n = p.in.position();
+
+            if (p.state == Pending.HANDSHAKE) {
+                if (n < 21)
+                    return;
+                if (!eq(a, 0, NET_ID) || !eq(a, 16, VER)) {
+                    close(k, p);
+                    return;
+                }
+                if (a[20] == 5) {
+                    if (n < 37)
+                        return;
+                    p.token = new UUID(getLong(a, 21), getLong(a, 29));
+                    consume(p.in, 37);
+                    // The range follows, it stays in the socket until the receiver takes the connection.
+                    p.state = Pending.STRIPE;
+                    p.deadline = now + PING_TIMEOUT;
+                    k.interestOps(0);
+                    return;
+                }
+                if (a[20] != 3) {
+                    p.out.put((byte) 2);
+                    putString(p.out, "sync-unknown-code");
+                    p.out.put(a[20]);
+                    closeAfterWrite(k, p, now);
+                    return;
+                }
+                final int l = a[37] & 0xFF;
+                if (n < 38 || n < 38 + l + NONCE_SIZE)
+                    return;
+                final UUID uuid = new UUID(getLong(a, 21), getLong(a, 29));
+                final String name = new String(a, 38, l, StandardCharsets.UTF_8);
+                final byte[] nonce = Arrays.copyOfRange(a, 38 + l, 38 + l + NONCE_SIZE);
+                consume(p.in, 38 + l + NONCE_SIZE);
+                request(k, p, cp, uuid, name, nonce, now);
+                continue;
+            }
+
+            final byte b = a[0];
+            if (b == 6 && p.state == Pending.PROVE) {
+                if (n < 1 + MAC_SIZE)
+                    return;
+                final boolean proven = MessageDigest.isEqual(Arrays.copyOfRange(a, 1, 1 + MAC_SIZE), p.proof);
+                consume(p.in, 1 + MAC_SIZE);
+                p.state = Pending.WAITING;
+                p.auto = proven;
+                if (proven)
+                    p.decide(Pending.ACCEPT);
+                else if (acceptJustSync.get())
+                    ask(p);
+                else {
+                    release(p, cp, null);
+                    reject(k, p, "sync-rejected", now);
+                    return;
+                }
+                continue;
+            }
+            if (b == 4) {
+                consume(p.in, 1);
+                if (p.pinged && p.metrics != null)
+                    p.metrics.rtt(System.nanoTime() - p.pingSent, listeners);
+                p.pinged = false;
+                p.nextPing = now + PING_INTERVAL;
+                continue;
+            }
+
+            if (b == 3 && p.state == Pending.CONFIRM) {
+                consume(p.in, 1);
+                p.state = Pending.HANDOFF;
+                handoff.add(k);
+                return;
+            }
+
+            final String text;
+            if (b == 2) {
+                if (n < 2 || n < 2 + (a[1] & 0xFF))
+                    return;
+                text = reasonText(new String(a, 2, a[1] & 0xFF, StandardCharsets.UTF_8));
+                consume(p.in, 2 + (a[1] & 0xFF));
+            } else {
+                consume(p.in, 1);
+                p.out.put((byte) 2);
+                putString(p.out, "sync-unknown-code");
+                p.out.put(b);
+                text = Core.bundle.format("sync-unknown-code", b);
+            }
+            release(p, cp, text);
+            closeAfterWrite(k, p, now);
+            return;
+        }
+    }
+
+    private void request(final SelectionKey k, final Pending p, final AtomicBoolean cp, final UUID uuid, final String name, final byte[] nonce,
+                         final long now) throws IOException {
+        final MindustrySyncProject.TrustedDevice trusted = autoSync ? msp.trustedDevices.get(uuid) : null;
+        if (!acceptJustSync.get() && trusted == null) {
+            reject(k, p, "sync-rejected", now);
+            return;
+        }
+
+        synchronized (cp) {
+            if (cp.get()) {
+                reject(k, p, "server.kicked.playerLimit", now);
+                return;
+            }
+            cp.set(true);
+            p.owner = true;
+        }
+
+        p.state = Pending.WAITING;
+        p.peer = uuid;
+        p.name = name;
+        p.metrics = new SyncMetrics(uuid, true);
+        p.nextPing = now + PING_INTERVAL;
+
+        // Anyone can send a trusted id, it has to prove it has the key too.
+        if (trusted != null) {
+            final byte[] hostNonce = new byte[NONCE_SIZE];
+            random.nextBytes(hostNonce);
+            final byte[] nonces = concat(nonce, hostNonce);
+            p.proof = proof(trusted.key, nonces, CLIENT_PROOF);
+            p.out.put((byte) 6);
+            p.out.put(hostNonce);
+            p.out.put(proof(trusted.key, nonces, HOST_PROOF));
+            p.auto = true;
+            p.state = Pending.PROVE;
+            p.deadline = now + HANDSHAKE_TIMEOUT;
+            flushOut(k, p);
+            return;
+        }
+        ask(p);
+    }
+
+    /**
+     * Lets the user decide.
+     */
+    private void ask(final Pending p) {
+        MainThread.post(() -> {
+            final ABaseDialog d = new ABaseDialog("@sync-request");
+            p.window.set(d);
+            d.cont.defaults().size(280f, 60f);
+            d.cont.add(Core.bundle.get("sync-device-name") + ": " + p.name).row();
+            d.cont.add("UUID: " + p.peer).row();
+            d.cont.button("@sync-reject", Icon.exit, () -> {
+                p.decide(Pending.REJECT);
+                d.hide();
+            });
+            d.cont.button("@sync-accept", Icon.ok, () -> {
+                p.window.set(new ABaseDialog("@syncing"));
+                p.decide(Pending.ACCEPT);
+                p.window.get().show();
+                d.hide();
+            }).row();
+            d.show();
+        });
+    }
+
+    private void tick(final SelectionKey k, final Pending p, final AtomicBoolean cp, final long now, final ArrayList<SelectionKey> handoff) throws IOException {
+        if (p.state == Pending.STRIPE && stripes.containsKey(p.token)) {
+            p.state = Pending.HANDOFF;
+            handoff.add(k);
+            return;
+        }
+        if (p.state == Pending.WAITING) {
+            final int d = p.decision.get();
+            if (d == Pending.ACCEPT) {
+                p.out.put((byte) 3);
+                p.state = Pending.CONFIRM;
+                p.deadline = now + PING_TIMEOUT;
+                flushOut(k, p);
+            } else if (d == Pending.REJECT) {
+                release(p, cp, null);
+                reject(k, p, "sync-rejected", now);
+            } else if (p.pinged) {
+                if (now >= p.deadline)
+                    throw new SocketTimeoutException("No answer to the keep-alive");
+            } else if (now >= p.nextPing) {
+                p.out.put((byte) 4);
+                p.pinged = true;
+                p.pingSent = System.nanoTime();
+                p.deadline = now + PING_TIMEOUT;
+                flushOut(k, p);
+            }
+            return;
+        }
+        if (p.state != Pending.HANDOFF && now >= p.deadline)
+            throw new SocketTimeoutException("Read timed out");
+    }
+
+    private void startSync(final Pending p, final AtomicBoolean cp) {
+        final Socket c = p.ch.socket();
+        try {
+            p.ch.configureBlocking(true);
+            c.setSoTimeout(20000);
+            final InputStream in = input(p);
+            final OutputWriter w = new OutputWriter(c);
+            final InputReader r = new InputReader(in);
+            final ABaseDialog d = p.window.get();
+            workers.execute(() -> {
+                try (c; w; r) {
+                    if (d != null)
+                        MainThread.post(() -> d.cont.defaults().size(280f, 60f));
+                    sync(c, p.peer, p.name, w, r, d, true, p.auto, p.metrics, null);
+                } catch (final Exception ex) {
+                    Log.err(ex);
+                    if (d != null)
+                        MainThread.post(() -> {
+                            d.hide();
+                            Vars.ui.showException(ex);
+                        });
+                } finally {
+                    cp.set(false);
+                }
+            });
+        } catch (final Exception ex) {
+            Log.err(ex);
+            try {
+                c.close();
+            } catch (final IOException ex2) {
+                Log.err(ex2);
+            }
+            if (p.owner)
+                cp.set(false);
+            if (!p.auto)
+                MainThread.post(() -> {
+                    p.window.get().hide();
+                    Vars.ui.showException(ex);
+                });
+        }
+    }
+
+    private void startStripe(final Pending p) {
+        final Socket c = p.ch.socket();
+        try {
+            p.ch.configureBlocking(true);
+            c.setSoTimeout(20000);
+            final LinkedBlockingQueue<Stripe> q = stripes.get(p.token);
+            if (q == null)
+                throw new IOException("Nobody waits for the stripe anymore");
+            q.add(new Stripe(c, input(p)));
+        } catch (final IOException ex) {
+            Log.err(ex);
+            try {
+                c.close();
+            } catch (final IOException ex2) {
+                Log.err(ex2);
+            }
+        }
+    }
+
+    /**
+     * NET_ID (16) + VER (4) + CODE 3 (1) + DEVICE_ID (16) + NAME_LENGTH (1) + NAME + NONCE (16)
+     * @return the nonce, a host that trusts us challenges with it.
+     */
+    private byte[] writeRequest(final OutputWriter w) throws IOException {
+        w.write(NET_ID);
+        w.write(VER);
+
+        w.write(3);
+        w.write(deviceId);
+        w.writeString(deviceName.get());
+        final byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        w.write(nonce);
+
+        w.flush();
+        return nonce;
+    }
+
+    /**
+     * HOST_NONCE (16) + HOST_PROOF (32), answered with CODE 6 (1) + CLIENT_PROOF (32).
+     * Only a host that proved it has the key gets our proof, a wrong one lets it ask its user instead.
+     * @return whether the host proved it.
+     */
+    private boolean answer(final InputReader i, final OutputWriter w, final UUID host, final byte[] nonce) throws IOException {
+        final byte[] nonces = concat(nonce, i.readBuf(NONCE_SIZE)), mac = i.readBuf(MAC_SIZE);
+        final MindustrySyncProject.TrustedDevice t = msp.trustedDevices.get(host);
+        final boolean proven = t != null && MessageDigest.isEqual(mac, proof(t.key, nonces, HOST_PROOF));
+        w.write(6);
+        w.write(proven ? proof(t.key, nonces, CLIENT_PROOF) : new byte[MAC_SIZE]);
+        w.flush();
+        return proven;
+    }
+
+    private static byte[] proof(final byte[] key, final byte[] nonces, final byte tag) throws IOException {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            mac.update(nonces);
+            return mac.doFinal(new byte[] { tag });
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final byte[] r = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+
+    /**
+     * Starts or stops watching the data directories, as the setting says.
+     */
+    public void updateAutoSync() {
+        synchronized (unsynced) {
+            autoSync = Core.settings.getBool(AUTO_SYNC_KEY, false);
+            if (!autoSync) {
+                if (watcher != null)
+                    watcher.stop();
+                watcher = null;
+                unsynced.clear();
+                return;
+            }
+            if (watcher != null)
+                return;
+            final HashMap<String, FileIndex> dirs = new HashMap<>();
+            for (final Map.Entry<String, ISyncData> e : dm.entrySet()) {
+                final FileIndex i = e.getValue().getIndex();
+                if (i != null)
+                    dirs.put(e.getKey(), i);
+            }
+            watcher = new DirectoryWatcher(dirs, this::changed);
+            watcher.start();
+        }
+    }
+
+    public void trust(final UUID peer, final String name, final byte[] key) {
+        msp.trustedDevices.put(peer, new MindustrySyncProject.TrustedDevice(name, key));
+        msp.save();
+    }
+
+    public void distrust(final UUID peer) {
+        msp.trustedDevices.remove(peer);
+        synchronized (unsynced) {
+            unsynced.remove(peer);
+        }
+        msp.save();
+    }
+
+    /**
+     * From the watcher, every trusted device gets the changes.
+     */
+    private void changed(final HashSet<String> keys) {
+        synchronized (unsynced) {
+            for (final UUID peer : msp.trustedDevices.keySet())
+                unsynced.computeIfAbsent(peer, k -> new HashSet<>()).addAll(keys);
+        }
+        schedule(0);
+    }
+
+    private void schedule(final long delay) {
+        try {
+            auto.schedule(this::pushChanges, delay, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException ignored) {
+            // Exiting.
+        }
+    }
+
+    /**
+     * Pushes the changes to trusted devices in sight, the rest waits until they show up or the next try.
+     */
+    private void pushChanges() {
+        if (!autoSync)
+            return;
+        final ArrayList<UUID> peers;
+        synchronized (unsynced) {
+            peers = new ArrayList<>(unsynced.keySet());
+        }
+        boolean retry = false;
+        for (final UUID peer : peers) {
+            final Device device = devices.get(peer);
+            if (device == null)
+                continue;
+            final HashSet<String> keys;
+            synchronized (unsynced) {
+                keys = unsynced.remove(peer);
+            }
+            if (keys == null || keys.isEmpty())
+                continue;
+            try {
+                push(device, keys);
+            } catch (final Exception ex) {
+                Log.err(ex);
+                synchronized (unsynced) {
+                    if (msp.trustedDevices.containsKey(peer))
+                        unsynced.computeIfAbsent(peer, k -> new HashSet<>()).addAll(keys);
+                }
+                retry = true;
+            }
+        }
+        if (!retry || retrying)
+            return;
+        retrying = true;
+        try {
+            auto.schedule(() -> {
+                retrying = false;
+                pushChanges();
+            }, AUTO_RETRY, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException ignored) {
+        }
+    }
+
+    /**
+     * Like a request from the device list, without a dialog.
+     */
+    private void push(final Device device, final Set<String> keys) throws IOException {
+        try (final Socket c = connect(device.ip); final OutputWriter w = new OutputWriter(c); final InputReader i = new InputReader(c.getInputStream())) {
+            final byte[] nonce = writeRequest(w);
+            c.setSoTimeout(20000);
+            boolean proven = false;
+            while (true) {
+                final byte b = i.readByte();
+                if (b == 4) {
+                    w.write(4);
+                    w.flush();
+                    continue;
+                }
+                if (b == 6) {
+                    proven = answer(i, w, device.uuid, nonce);
+                    continue;
+                }
+                if (b == 3) {
+                    // Changes only go to the device we trusted, not to whoever answers at its address.
+                    if (!proven)
+                        throw new IOException("The device didn't prove it's trusted");
+                    w.write(3);
+                    w.flush();
+                    sync(c, device.uuid, device.name, w, i, null, false, true, new SyncMetrics(device.uuid, false), keys);
+                    return;
+                }
+                if (b == 2)
+                    throw new IOException(readReason(i));
+                throw new IOException("Unknown code: " + b);
+            }
+        }
+    }
+
+    private Socket connect(final InetAddress ip) throws IOException {
+        final Socket c = SocketChannel.open().socket();
+        try {
+            c.setSoTimeout(5000);
+            c.connect(new InetSocketAddress(ip, port), 5000);
+        } catch (final IOException ex) {
+            c.close();
+            throw ex;
+        }
+        return c;
+    }
+
+    /**
+     * Bytes that came right after the handshake are still in the selector's buffer.
+     */
+    private static InputStream input(final Pending p) throws IOException {
+        final InputStream is = p.ch.socket().getInputStream();
+        if (p.in.position() == 0)
+            return is;
+        return new SequenceInputStream(new ByteArrayInputStream(Arrays.copyOf(p.in.array(), p.in.position())), is);
+    }
+
+    private void fail(final SelectionKey k, final Pending p, final AtomicBoolean cp, final Exception ex) {
+        Log.err(ex);
+        close(k, p);
+        if (!p.owner)
+            return;
+        p.owner = false;
+        cp.set(false);
+        if (!p.auto)
+            MainThread.post(() -> {
+                final ABaseDialog d = p.window.get();
+                if (d != null)
+                    d.hide();
+                Vars.ui.showException(ex);
+            });
+    }
+
+    /**
+     * Frees the sync slot and closes its dialog.
+     */
+    private void release(final Pending p, final AtomicBoolean cp, final String text) {
+        if (!p.owner)
+            return;
+        p.owner = false;
+        cp.set(false);
+        if (!p.auto)
+            MainThread.post(() -> {
+                final ABaseDialog d = p.window.get();
+                if (d != null)
+                    d.hide();
+                if (text != null)
+                    Vars.ui.showInfo(text);
+            });
+    }
+
+    private void reject(final SelectionKey k, final Pending p, final String reason, final long now) throws IOException {
+        p.out.put((byte) 2);
+        putString(p.out, reason);
+        closeAfterWrite(k, p, now);
+    }
+
+    private void closeAfterWrite(final SelectionKey k, final Pending p, final long now) throws IOException {
+        p.state = Pending.CLOSING;
+        p.deadline = now + HANDSHAKE_TIMEOUT;
+        k.interestOps(0);
+        flushOut(k, p);
+    }
+
+    private static void flushOut(final SelectionKey k, final Pending p) throws IOException {
+        p.out.flip();
+        p.ch.write(p.out);
+        p.out.compact();
+        if (p.out.position() > 0) {
+            k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        if (p.state == Pending.CLOSING) {
+            close(k, p);
+            return;
+        }
+        k.interestOps(k.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private static void close(final SelectionKey k, final Pending p) {
+        k.cancel();
+        try {
+            p.ch.close();
+        } catch (final IOException ex) {
+            Log.err(ex);
+        }
+    }
+
+    private static void consume(final ByteBuffer in, final int n) {
+        in.flip();
+        in.position(n);
+        in.compact();
+    }
+
+    private static void putString(final ByteBuffer out, final String str) {
+        final byte[] d = str.getBytes(StandardCharsets.UTF_8);
+        out.put((byte) d.length);
+        out.put(d);
+    }
+
+    private String reasonText(final String reason) {
+        switch (reason) {
+            case "sync-rejected":
+                return Core.bundle.get(reason);
+            case "canceled":
+                return Core.bundle.get("sync-canceled");
+        }
+        return Core.bundle.format("sync-unknown-reason", reason);
+    }
+
     @Override
     public void settings() {
         final BaseDialog d = new BaseDialog("Local Sync Service");
@@ -618,12 +1724,14 @@ public class LocalSyncService implements ISyncService {
                         onCode0 = null;
                         onCode1 = null;
                     }
-                    try (final DatagramSocket s = new DatagramSocket()) {
-                        s.setReuseAddress(false);
-                        s.send(hidePacket());
-                    } catch (final Exception ex) {
-                        Log.err(ex);
-                    }
+                    // Trusted devices still see us.
+                    if (!autoSync)
+                        try (final DatagramSocket s = new DatagramSocket()) {
+                            s.setReuseAddress(false);
+                            s.send(hidePacket());
+                        } catch (final Exception ex) {
+                            Log.err(ex);
+                        }
                 });
             }
             f.show();
@@ -635,19 +1743,19 @@ public class LocalSyncService implements ISyncService {
                     } catch (final Exception ex) {
                         Log.err(ex);
                     }
-                    Core.app.post(() -> f.cont.add(new DeviceButton(device, () -> {
+                    MainThread.post(() -> f.cont.add(new DeviceButton(device, () -> {
                         final SyncVar<ABaseDialog> r = new SyncVar<>(new ABaseDialog("@connecting"));
                         r.get().show();
                         new Thread(() -> {
-                            try (final Socket c = new Socket()) {
-                                c.setSoTimeout(5000);
-                                c.connect(new InetSocketAddress(device.ip, port), 5000);
-                                final OutputWriter w = new OutputWriter(c.getOutputStream());
-                                final InputReader i = new InputReader(c.getInputStream());
-
-                                final AtomicBoolean cancel = new AtomicBoolean(false);
-
-                                Core.app.post(() -> {
+                            final AtomicBoolean cancel = new AtomicBoolean(false);
+                            // Closed first, so the dialog doesn't write after the buffers went back to the pool.
+                            try (final Socket c = connect(device.ip); final OutputWriter w = new OutputWriter(c); final InputReader i = new InputReader(c.getInputStream());
+                                 final Closeable done = () -> {
+                                     synchronized (cancel) {
+                                         cancel.set(true);
+                                     }
+                                 }) {
+                                MainThread.post(() -> {
                                     r.get().title.setText("@sync-requesting");
                                     r.get().onClose(() -> {
                                         synchronized (cancel) {
@@ -659,14 +1767,13 @@ public class LocalSyncService implements ISyncService {
                                                 w.write(2);
                                                 w.writeString("canceled");
                                                 w.flush();
-
-                                                w.close();
                                             } catch (final IOException ex) {
                                                 Log.err(ex);
                                             }
                                         }
+                                        // The sync thread closes the writer and the reader.
                                         try {
-                                            i.close();
+                                            c.close();
                                         } catch (final IOException ex) {
                                             Log.err(ex);
                                         }
@@ -674,17 +1781,11 @@ public class LocalSyncService implements ISyncService {
                                     r.get().addCloseButton();
                                 });
 
-                                w.write(NET_ID);
-                                w.write(VER);
-
-                                w.write(3);
-                                w.write(deviceId);
-                                w.writeString(deviceName.get());
-
-                                w.flush();
+                                final byte[] nonce = writeRequest(w);
 
                                 c.setSoTimeout(20000);
 
+                                boolean proven = false;
                                 while (true) {
                                     final byte b = i.readByte();
 
@@ -694,13 +1795,18 @@ public class LocalSyncService implements ISyncService {
                                         continue;
                                     }
 
+                                    if (b == 6) {
+                                        proven = answer(i, w, device.uuid, nonce);
+                                        continue;
+                                    }
+
                                     if (b == 3) {
                                         synchronized (cancel) {
                                             if (cancel.get())
                                                 break;
                                             cancel.set(true);
 
-                                            Core.app.post(() -> {
+                                            MainThread.post(() -> {
                                                 r.get().hide();
                                                 r.set(new ABaseDialog("@syncing"));
                                                 r.get().show();
@@ -712,13 +1818,13 @@ public class LocalSyncService implements ISyncService {
                                         }
                                         w.write(3);
                                         w.flush();
-                                        sync(w, i, r.get(), false);
+                                        sync(c, device.uuid, device.name, w, i, r.get(), false, proven, new SyncMetrics(device.uuid, false), null);
                                         break;
                                     }
 
                                     if (b == 2) {
                                         final String reason = readReason(i);
-                                        Core.app.post(() -> {
+                                        MainThread.post(() -> {
                                             r.get().removeAllCloseListeners();
                                             r.get().title.setText("@sync-rejected");
                                             r.get().cont.add(reason).row();
@@ -731,7 +1837,7 @@ public class LocalSyncService implements ISyncService {
                                     w.writeString("sync-unknown-code");
                                     w.write(b);
                                     w.flush();
-                                    Core.app.post(() -> {
+                                    MainThread.post(() -> {
                                         r.get().cont.add(Core.bundle.format("sync-unknown-code", b)).row();
                                         r.get().addCloseButton();
                                     });
@@ -739,7 +1845,7 @@ public class LocalSyncService implements ISyncService {
                                 }
                             } catch (final Exception ex) {
                                 Log.err(ex);
-                                Core.app.post(() -> {
+                                MainThread.post(() -> {
                                     r.get().hide();
                                     Vars.ui.showException(ex);
                                 });
@@ -754,8 +1860,10 @@ public class LocalSyncService implements ISyncService {
                             break;
                         }
                 };
-                for (final Device device : onCode0List)
-                    onCode0.run(device);
+                final long now = System.currentTimeMillis();
+                for (final Device device : devices.values())
+                    if (now - device.lastSeen <= DEVICE_TTL)
+                        onCode0.run(device);
             }
             try (final MulticastSocket socket = new MulticastSocket()) {
                 socket.setReuseAddress(false);
@@ -765,6 +1873,65 @@ public class LocalSyncService implements ISyncService {
             }
         }).row();
 
+        d.cont.add("@sync-stripes").row();
+        final Label stripesErr = new Label("");
+        d.cont.field(Integer.toString(Core.settings.getInt(STRIPES_KEY, DEFAULT_STRIPES)), s -> {
+            try {
+                final int n = Integer.parseInt(s);
+                if (n < 1 || n > MAX_STRIPES)
+                    throw new NumberFormatException();
+                Core.settings.put(STRIPES_KEY, n);
+                stripesErr.setText("");
+            } catch (final NumberFormatException ex) {
+                stripesErr.setText(Core.bundle.format("sync-stripes-invalid", MAX_STRIPES));
+            }
+        }).row();
+        stripesErr.setColor(Color.red);
+        d.cont.add(stripesErr).row();
+        d.cont.add("@sync-stripe-threshold").row();
+        final Label thresholdErr = new Label("");
+        d.cont.field(Integer.toString(Core.settings.getInt(STRIPE_THRESHOLD_KEY, DEFAULT_STRIPE_THRESHOLD)), s -> {
+            try {
+                final int n = Integer.parseInt(s);
+                if (n < 1)
+                    throw new NumberFormatException();
+                Core.settings.put(STRIPE_THRESHOLD_KEY, n);
+                thresholdErr.setText("");
+            } catch (final NumberFormatException ex) {
+                thresholdErr.setText("@sync-stripe-threshold-invalid");
+            }
+        }).row();
+        thresholdErr.setColor(Color.red);
+        d.cont.add(thresholdErr).row();
+
+        if (Core.app.isDesktop())
+            d.cont.check("@sync-direct-buffers", Core.settings.getBool(BufferPool.DIRECT_KEY, true), v -> Core.settings.put(BufferPool.DIRECT_KEY, v)).row();
+        d.cont.add(Core.bundle.format("sync-buffers", BufferPool.shared.used() / 1024, BufferPool.shared.cap / 1024)).row();
+
+        d.cont.check("@sync-auto", Core.settings.getBool(AUTO_SYNC_KEY, false), v -> {
+            Core.settings.put(AUTO_SYNC_KEY, v);
+            updateAutoSync();
+        }).row();
+        d.cont.add("@sync-trusted").row();
+        if (msp.trustedDevices.isEmpty())
+            d.cont.add("@sync-trusted-none").row();
+        for (final Map.Entry<UUID, MindustrySyncProject.TrustedDevice> e : msp.trustedDevices.entrySet()) {
+            // Clicking a device forgets it.
+            final TextButton t = new TextButton(e.getValue().name + " [gray]" + e.getKey());
+            t.changed(() -> {
+                distrust(e.getKey());
+                t.remove();
+            });
+            d.cont.add(t).row();
+        }
+
+        d.cont.add("@sync-metrics").row();
+        final SyncMetrics m = lastMetrics.get();
+        if (m == null)
+            d.cont.add("@sync-metrics-none").row();
+        else
+            d.cont.add(m.summary()).size(600f, 30f * (m.data().size() + 3)).row();
+
         /*d.cont.add("Trusted devices").row();
 
         d.cont.button("Add the device", () -> {
@@ -0,0 +1,179 @@
+package msp.base;
+
+import arc.util.Log;
+import mindustry.ui.dialogs.BaseDialog;
+import msp.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Two sides of a sync in one process, connected by a pair of {@link RingBuffer}s instead of the network.
+ * Contexts have no dialog and {@link MainThread} plays the main thread if there's no application,
+ * so any {@link ISyncData} can be run on a headless box and measured apart from the network.
+ * <br>
+ * Both lists need the same kinds of data in the same order, each side with its own directories.
+ * It's not a service of the game, {@code LoopbackBenchmark} in bench/ drives it.
+ */
+public class LoopbackSyncService {
+    public static final int DEFAULT_CAPACITY = 256 * 1024, BUFF_SIZE = 8 * 1024;
+
+    public final int capacity;
+    private final List<SyncMetrics.Listener> listeners;
+
+    public static class Result {
+        public final SyncMetrics host, client;
+
+        public Result(final SyncMetrics host, final SyncMetrics client) {
+            this.host = host;
+            this.client = client;
+        }
+    }
+
+    public LoopbackSyncService(final List<SyncMetrics.Listener> listeners) { this(listeners, DEFAULT_CAPACITY); }
+
+    /**
+     * @param capacity of each ring buffer, a full ring blocks the writer like a full socket.
+     */
+    public LoopbackSyncService(final List<SyncMetrics.Listener> listeners, final int capacity) {
+        this.listeners = listeners;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Runs both sides to the end, every data on its own channel like over the network.
+     */
+    public Result sync(final List<ISyncData> host, final List<ISyncData> client) throws IOException {
+        if (host.size() != client.size())
+            throw new IllegalArgumentException("Both sides need the same data: " + host.size() + " != " + client.size());
+        final RingBuffer up = new RingBuffer(capacity), down = new RingBuffer(capacity);
+        final UUID hostId = UUID.randomUUID(), clientId = UUID.randomUUID();
+        final Result r = new Result(new SyncMetrics(clientId, true), new SyncMetrics(hostId, false));
+
+        final IOException[] error = new IOException[1];
+        final Thread c = new Thread(() -> {
+            try {
+                run(new End(false, down, up, hostId), client, r.client);
+            } catch (final IOException ex) {
+                error[0] = ex;
+            } finally {
+                // The host stops waiting for a side that failed.
+                up.close();
+                down.close();
+            }
+        }, "MSP-Loopback");
+        c.setDaemon(true);
+        c.start();
+        try {
+            run(new End(true, up, down, clientId), host, r.host);
+        } finally {
+            up.close();
+            down.close();
+        }
+        try {
+            c.join();
+        } catch (final InterruptedException ex) {
+            Log.err(ex);
+        }
+        if (error[0] != null)
+            throw error[0];
+        return r;
+    }
+
+    private void run(final End end, final List<ISyncData> data, final SyncMetrics metrics) throws IOException {
+        metrics.start = System.nanoTime();
+        try {
+            new Multiplexer(end, data, metrics).run();
+        } catch (final IOException | RuntimeException ex) {
+            metrics.finish(ex, listeners);
+            throw ex;
+        }
+        metrics.finish(null, listeners);
+    }
+
+    /**
+     * Writes are buffered until a flush, like {@link LocalSyncService.OutputWriter}.
+     */
+    private static class End implements ISyncContext {
+        private final boolean host;
+        private final RingBuffer out, in;
+        private final UUID peer;
+        private final byte[] o = new byte[BUFF_SIZE], i = new byte[BUFF_SIZE];
+        private int w = 0, r = 0, l = 0;
+
+        public End(final boolean host, final RingBuffer out, final RingBuffer in, final UUID peer) {
+            this.host = host;
+            this.out = out;
+            this.in = in;
+            this.peer = peer;
+        }
+
+        @Override public boolean isHost() { return host; }
+        @Override public boolean isStatic() { return false; }
+        @Override public BaseDialog getDialog() { return null; }
+        @Override public UUID getPeerId() { return peer; }
+
+        @Override
+        public void write(final byte b) throws IOException {
+            if (w == o.length)
+                flush();
+            o[w++] = b;
+        }
+
+        @Override public void write(final int b) throws IOException { write((byte) b); }
+
+        @Override
+        public void write(final byte[] arr, final int off, final int len) throws IOException {
+            if (len > o.length - w) {
+                flush();
+                if (len >= o.length) {
+                    out.write(arr, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(arr, off, o, w, len);
+            w += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (w == 0)
+                return;
+            out.write(o, 0, w);
+            w = 0;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            if (r == l) {
+                l = in.read(i, 0, i.length);
+                r = 0;
+            }
+            return i[r++];
+        }
+
+        @Override
+        public byte[] readBuf(final byte[] buf, int off, int len) throws IOException {
+            while (len > 0) {
+                if (r == l) {
+                    // Large reads skip the buffer.
+                    if (len >= i.length) {
+                        final int n = in.read(buf, off, len);
+                        off += n;
+                        len -= n;
+                        continue;
+                    }
+                    l = in.read(i, 0, i.length);
+                    r = 0;
+                }
+                final int n = Math.min(len, l - r);
+                System.arraycopy(i, r, buf, off, n);
+                r += n;
+                off += n;
+                len -= n;
+            }
+            return buf;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,243 @@
+package msp.base;
+
+import arc.Core;
+import arc.scene.style.Drawable;
+import arc.scene.ui.Label;
+import arc.struct.Seq;
+import arc.util.Log;
+import mindustry.Vars;
+import mindustry.content.TechTree;
+import mindustry.ctype.Content;
+import mindustry.ctype.UnlockableContent;
+import mindustry.gen.Icon;
+import mindustry.type.ItemStack;
+import mindustry.ui.dialogs.BaseDialog;
+import msp.ISyncContext;
+import msp.MainThread;
+import msp.SyncMetrics;
+import msp.ISyncData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unlocked content and items spent on research, merged by taking the bigger value of every entry.
+ * <br>
+ * Summary: FORMAT (1) + ROOT (8) + [BUCKET (8)]... is all that crosses the wire when nothing changed.
+ * <br>
+ * Otherwise: COUNT (4) + [KEY + VALUE (4)]... for entries in buckets that differ.
+ */
+public class ResearchData implements ISyncData {
+    public static final int FORMAT = 1, BUCKETS = 64;
+
+    /** Entries with a value of 0 aren't kept, a missing entry is 0 on both sides. */
+    private static class State {
+        public final HashMap<String, Integer> values = new HashMap<>();
+        public final HashMap<String, UnlockableContent> unlocks = new HashMap<>();
+        public final HashMap<String, TechTree.TechNode> nodes = new HashMap<>();
+        public final HashMap<String, ItemStack> requirements = new HashMap<>();
+        public final long[] buckets = new long[BUCKETS];
+        public long root;
+
+        public void put(final String key, final int value) {
+            if (value <= 0)
+                return;
+            values.put(key, value);
+            final long h = hash(key);
+            buckets[bucket(h)] += mix(h ^ value * 0x9E3779B97F4A7C15L);
+        }
+
+        public void seal() {
+            long r = FORMAT;
+            for (final long b : buckets)
+                r = mix(r ^ b);
+            root = r;
+        }
+    }
+
+    @Override public String getName() { return "@sync-research"; }
+    @Override public Drawable getIcon() { return Icon.tree; }
+
+    @Override
+    public void settings() {
+        final BaseDialog d = new BaseDialog(getName());
+        d.addCloseButton();
+        d.cont.add("@sync-research-info").row();
+        d.show();
+    }
+
+    @Override
+    public void sync(final ISyncContext c) throws IOException {
+        if (c.isStatic())
+            return;
+        final BaseDialog d = c.getDialog();
+        final SyncMetrics.Data metrics = c.getMetrics();
+        metrics.phase(SyncMetrics.MANIFEST);
+
+        final State local = new State();
+        onMain(() -> collect(local));
+
+        c.write(FORMAT);
+        c.writeLong(local.root);
+        for (final long b : local.buckets)
+            c.writeLong(b);
+        c.flush();
+
+        final int format = c.readByte() & 0xFF;
+        final long root = c.readLong();
+        final long[] remoteBuckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            remoteBuckets[i] = c.readLong();
+
+        if (format != FORMAT) {
+            // Both sides see the mismatch, so neither waits for entries.
+            if (d != null)
+                MainThread.post(() -> d.cont.add(Core.bundle.format("sync-research-format", format)).row());
+            return;
+        }
+        if (root == local.root) {
+            if (d != null)
+                MainThread.post(() -> d.cont.add(Core.bundle.get("sync-research") + ": " + Core.bundle.get("sync-research-same")).row());
+            return;
+        }
+
+        final boolean[] differs = new boolean[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            differs[i] = remoteBuckets[i] != local.buckets[i];
+
+        metrics.phase(SyncMetrics.TRANSFER);
+        final ArrayList<Map.Entry<String, Integer>> send = new ArrayList<>();
+        for (final Map.Entry<String, Integer> e : local.values.entrySet())
+            if (differs[bucket(hash(e.getKey()))])
+                send.add(e);
+        c.writeInt(send.size());
+        for (final Map.Entry<String, Integer> e : send) {
+            c.writeString(e.getKey());
+            c.writeInt(e.getValue());
+        }
+        c.flush();
+
+        // Only raising a value is ever needed, the peer does the same with ours.
+        final HashMap<String, Integer> raise = new HashMap<>();
+        for (int i = c.readInt(); i > 0; i--) {
+            final String k = c.readString();
+            final int v = c.readInt();
+            final Integer l = local.values.get(k);
+            if (l == null || v > l)
+                raise.put(k, v);
+        }
+
+        if (raise.isEmpty()) {
+            if (d != null)
+                MainThread.post(() -> d.cont.add(Core.bundle.get("sync-research") + ": " + Core.bundle.get("sync-research-same")).row());
+            return;
+        }
+        onMain(() -> {
+            final long t = System.nanoTime();
+            int applied = 0;
+            final ArrayList<TechTree.TechNode> changed = new ArrayList<>();
+            for (final Map.Entry<String, Integer> e : raise.entrySet()) {
+                final UnlockableContent u = local.unlocks.get(e.getKey());
+                if (u != null) {
+                    if (!u.unlocked())
+                        u.unlock();
+                    applied++;
+                    continue;
+                }
+                final ItemStack s = local.requirements.get(e.getKey());
+                if (s == null)
+                    continue; // Content of a mod that isn't installed here.
+                s.amount = Math.max(s.amount, e.getValue());
+                final TechTree.TechNode n = local.nodes.get(e.getKey());
+                if (!changed.contains(n))
+                    changed.add(n);
+                applied++;
+            }
+            for (final TechTree.TechNode n : changed)
+                n.save();
+            final int a = applied;
+            if (d != null)
+                d.cont.add(Core.bundle.format("sync-research-applied", a)).row();
+            metrics.add(SyncMetrics.APPLY, System.nanoTime() - t);
+        });
+    }
+
+    /**
+     * Reads the state on the main thread, where the game changes it.
+     */
+    private static void collect(final State s) {
+        for (final Seq<Content> seq : Vars.content.getContentMap())
+            for (final Content ct : seq)
+                if (ct instanceof UnlockableContent) {
+                    final UnlockableContent u = (UnlockableContent) ct;
+                    if (u.alwaysUnlocked)
+                        continue;
+                    final String k = "u:" + u.getContentType() + ":" + u.name;
+                    s.unlocks.put(k, u);
+                    s.put(k, u.unlocked() ? 1 : 0);
+                }
+        for (final TechTree.TechNode n : TechTree.all) {
+            if (n.content == null || n.finishedRequirements == null)
+                continue;
+            for (final ItemStack r : n.finishedRequirements) {
+                final String k = "r:" + n.content.getContentType() + ":" + n.content.name + ":" + r.item.name;
+                s.requirements.put(k, r);
+                s.nodes.put(k, n);
+                s.put(k, r.amount);
+            }
+        }
+        s.seal();
+    }
+
+    private static void onMain(final Runnable r) throws IOException {
+        final Object l = new Object();
+        final Throwable[] error = new Throwable[1];
+        final boolean[] done = new boolean[1];
+        synchronized (l) {
+            MainThread.post(() -> {
+                try {
+                    r.run();
+                } catch (final Throwable ex) {
+                    error[0] = ex;
+                }
+                synchronized (l) {
+                    done[0] = true;
+                    l.notifyAll();
+                }
+            });
+            try {
+                while (!done[0])
+                    l.wait();
+            } catch (final InterruptedException ex) {
+                Log.err(ex);
+                throw new IOException(ex);
+            }
+        }
+        if (error[0] != null)
+            throw new IOException(error[0]);
+    }
+
+    /**
+     * 64 bit FNV-1a over the chars, the same on every device.
+     */
+    private static long hash(final String key) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static int bucket(final long hash) { return (int) (hash >>> 58); }
+}
@@ -0,0 +1,244 @@
+package msp.base;
+
+import arc.Core;
+import arc.files.Fi;
+import arc.scene.style.Drawable;
+import arc.scene.ui.Label;
+import arc.util.Log;
+import mindustry.Vars;
+import mindustry.game.Saves;
+import mindustry.gen.Icon;
+import mindustry.ui.dialogs.BaseDialog;
+import msp.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+public class SavesData implements ISyncData {
+    public static final String DELTA_KEY = "msp-saves-delta";
+    /** Requests of one file before it's given up until the next sync. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    public final FileIndex index;
+
+    public SavesData(final MindustrySyncProject msp) {
+        this(msp.getIndex("saves", Core.settings.getDataDirectory().child("saves/"), ".msav"));
+    }
+
+    public SavesData(final FileIndex index) { this.index = index; }
+
+    @Override public String getName() { return "@sync-saves"; }
+    @Override public Drawable getIcon() { return Icon.save; }
+    @Override public FileIndex getIndex() { return index; }
+
+    @Override
+    public void settings() {
+        final BaseDialog d = new BaseDialog(getName());
+        d.addCloseButton();
+        d.cont.defaults().size(280f, 60f);
+        d.cont.check("@sync-saves-delta", isDelta(), v -> Core.settings.put(DELTA_KEY, v)).row();
+        d.show();
+    }
+
+    /**
+     * Whether changed saves are sent as rsync style deltas against the old copy.
+     */
+    public static boolean isDelta() { return Core.settings == null || Core.settings.getBool(DELTA_KEY, true); }
+
+    @Override
+    public void sync(final ISyncContext c) throws IOException {
+        if (c.isStatic())
+            return;
+        final BaseDialog d = c.getDialog();
+        final SyncMetrics.Data metrics = c.getMetrics();
+        metrics.phase(SyncMetrics.MANIFEST);
+
+        // Headless contexts have no dialog.
+        final Label status = d == null ? null : new Label(Core.bundle.get("sync-saves") + ": ??? / ???");
+        if (d != null)
+            MainThread.post(() -> d.cont.add(status).row());
+
+        final HashMap<String, FileIndex.Entry> local = index.refresh();
+        final HashSet<ByteBuffer> localHashes = new HashSet<>();
+        for (final FileIndex.Entry e : local.values())
+            localHashes.add(ByteBuffer.wrap(e.hash));
+
+        final boolean[] differs = new Merkle(local.values()).diff(c);
+        if (differs == null) {
+            MainThread.text(status, () -> Core.bundle.get("sync-saves") + ": " + Core.bundle.get("sync-up-to-date"));
+            return;
+        }
+        final ArrayList<FileIndex.Entry> manifest = new ArrayList<>();
+        for (final FileIndex.Entry e : local.values())
+            if (differs[Merkle.bucket(e.name)])
+                manifest.add(e);
+
+        // Manifest: NAME + SIZE (8) + LAST_MODIFIED (8) + HASH (16)
+        c.writeInt(manifest.size());
+        for (final FileIndex.Entry e : manifest) {
+            c.writeString(e.name);
+            c.writeLong(e.size);
+            c.writeLong(e.lastModified);
+            c.write(e.hash);
+        }
+        c.flush();
+
+        // The save being played is written by the game, it's not replaced under it.
+        final Saves.SaveSlot current = Vars.state != null && Vars.state.isGame() ? Vars.control.saves.getCurrent() : null;
+
+        final ArrayList<FileIndex.Entry> wanted = new ArrayList<>();
+        for (int i = c.readInt(); i > 0; i--) {
+            final String n = c.readString();
+            final long size = c.readLong(), lastModified = c.readLong();
+            final byte[] h = c.readBuf(FileIndex.HASH_SIZE);
+            // Mindustry's own backups are skipped.
+            if (n.contains("/") || n.contains("\\") || !n.endsWith(".msav") || n.contains("-backup."))
+                continue;
+            if (current != null && current.file != null && n.equals(current.file.name()))
+                continue;
+            final FileIndex.Entry e = local.get(n);
+            if (e == null) {
+                if (!localHashes.contains(ByteBuffer.wrap(h)))
+                    wanted.add(new FileIndex.Entry(n, size, lastModified, h));
+                continue;
+            }
+            if (e.size == size && Arrays.equals(e.hash, h))
+                continue;
+            // Same rule as schematics, only the newer copy crosses the wire.
+            if (e.size == 0 || lastModified > e.lastModified || (lastModified == e.lastModified && !c.isHost()))
+                wanted.add(new FileIndex.Entry(n, size, lastModified, h));
+        }
+
+        // The host fetches first, then serves, a single request is in flight at a time.
+        metrics.phase(SyncMetrics.TRANSFER);
+        int received = 0;
+        for (int phase = 0; phase < 2; phase++)
+            if (c.isHost() == (phase == 0))
+                received = fetch(c, wanted, status);
+            else
+                serve(c, local);
+
+        if (received > 0 && Vars.control != null)
+            MainThread.post(() -> {
+                final long t = System.nanoTime();
+                try {
+                    Vars.control.saves.load();
+                } catch (final Throwable e) {
+                    Log.err(e);
+                }
+                metrics.add(SyncMetrics.APPLY, System.nanoTime() - t);
+            });
+    }
+
+    /**
+     * Request: RESUME (7) + NAME + HASH (16) + OFFSET (8) | DELTA (6) + NAME + SIGNATURE, END (0) ends the phase.
+     * <br>
+     * Answer: MISSING (2) | RESUME (7) + {@link Resumable} stream | DELTA (6) + DELTA
+     */
+    private int fetch(final ISyncContext c, final ArrayList<FileIndex.Entry> wanted, final Label status) throws IOException {
+        final BaseDialog d = c.getDialog();
+        final boolean delta = isDelta();
+        int received = 0;
+        for (int i = 0; i < wanted.size(); i++) {
+            final int fi = i;
+            MainThread.text(status, () -> Core.bundle.get("sync-saves") + ": " + fi + " / " + wanted.size());
+
+            final FileIndex.Entry e = wanted.get(i);
+            final Fi f = index.dir.child(e.name), tmp = FileUtil.temp(f);
+            c.wrote(f);
+            // A transfer cut by a dropped connection continues where it stopped.
+            long offset = Resumable.offset(f, e.hash, e.size);
+            boolean full = offset > 0 || !delta || !f.exists() || f.length() == 0;
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                final int bs;
+                if (full) {
+                    c.write(7);
+                    c.writeString(e.name);
+                    c.write(e.hash);
+                    c.writeLong(offset);
+                    c.flush();
+                    bs = 0;
+                } else {
+                    c.write(6);
+                    c.writeString(e.name);
+                    bs = Delta.writeSignature(c, f);
+                }
+
+                final byte b = c.readByte();
+                if (b == 2)
+                    break;
+                if (b == 7) {
+                    if (Resumable.receive(c, f)) {
+                        c.getMetrics().filesIn.incrementAndGet();
+                        received++;
+                        break;
+                    }
+                    // Only what follows the last good chunk is requested again.
+                    offset = Resumable.offset(f, e.hash, e.size);
+                    continue;
+                }
+                if (b != 6)
+                    throw new IOException("Unknown packet code: " + b);
+                final boolean ok;
+                try {
+                    ok = Delta.receive(c, f, tmp, bs);
+                } catch (final IOException ex) {
+                    tmp.delete();
+                    throw ex;
+                }
+                if (ok) {
+                    FileUtil.replace(tmp, f);
+                    c.getMetrics().filesIn.incrementAndGet();
+                    received++;
+                    break;
+                }
+                // The old copy changed while the delta was made, the whole file is safer.
+                tmp.delete();
+                Log.err("Delta of " + f.name() + " doesn't match, requesting the whole file");
+                full = true;
+                offset = 0;
+            }
+        }
+        c.write(0);
+        c.flush();
+
+        final int r = received;
+        MainThread.text(status, () -> Core.bundle.get("sync-saves") + ": " + r + " / " + wanted.size());
+        if (d != null && r != wanted.size())
+            MainThread.post(() -> d.cont.add(Core.bundle.format("sync-saves-missing", wanted.size() - r)).row());
+        return received;
+    }
+
+    private void serve(final ISyncContext c, final HashMap<String, FileIndex.Entry> local) throws IOException {
+        while (true) {
+            final byte b = c.readByte();
+            if (b == 0)
+                return;
+            if (b != 6 && b != 7)
+                throw new IOException("Unknown packet code: " + b);
+            final String n = c.readString();
+            final Delta.Signature sig = b == 6 ? Delta.readSignature(c) : null;
+            final byte[] hash = b == 7 ? c.readBuf(FileIndex.HASH_SIZE) : null;
+            final long offset = b == 7 ? c.readLong() : 0;
+            final FileIndex.Entry e = local.get(n);
+            final Fi f = e != null ? index.dir.child(n) : null;
+            if (f == null || !f.exists())
+                c.write(2);
+            else if (sig != null) {
+                c.write(6);
+                Delta.send(c, sig, f);
+                c.getMetrics().filesOut.incrementAndGet();
+            } else {
+                c.write(7);
+                // A partial of another version starts over.
+                Resumable.send(c, f, e.hash, Arrays.equals(hash, e.hash) ? offset : 0);
+                c.getMetrics().filesOut.incrementAndGet();
+            }
+            c.flush();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package msp.base;
 
 import arc.Core;
 import arc.files.Fi;
+import arc.graphics.Color;
 import arc.scene.style.Drawable;
 import arc.scene.ui.Label;
 import arc.util.Log;
@@ -10,87 +11,174 @@ import mindustry.game.Schematic;
 import mindustry.game.Schematics;
 import mindustry.gen.Icon;
 import mindustry.ui.dialogs.BaseDialog;
+import msp.FileIndex;
+import msp.FileUtil;
+import msp.MainThread;
 import msp.ISyncData;
 import msp.ISyncContext;
+import msp.Merkle;
+import msp.MindustrySyncProject;
+import msp.SyncMetrics;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SchematicsData implements ISyncData {
+    public static final String WINDOW_KEY = "msp-schematics-window";
+    public static final int DEFAULT_WINDOW = 16;
+
+    /** Shared by all syncs, decoding doesn't touch the game's state. */
+    private static final ExecutorService decoders = Executors.newFixedThreadPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)), r -> {
+        final Thread t = new Thread(r, "MSP-Decode");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public final FileIndex index;
+
+    public SchematicsData(final MindustrySyncProject msp) {
+        this(msp.getIndex("schematics", Core.settings.getDataDirectory().child("schematics/"), ".msch"));
+    }
+
+    public SchematicsData(final FileIndex index) { this.index = index; }
+
     @Override public String getName() { return "@schematics"; }
     @Override public Drawable getIcon() { return Icon.paste; }
-    @Override public void settings() {}
+    @Override public FileIndex getIndex() { return index; }
+
+    @Override
+    public void settings() {
+        final BaseDialog d = new BaseDialog(getName());
+        d.addCloseButton();
+        d.cont.defaults().size(280f, 60f);
+
+        d.cont.add("@sync-window").row();
+        final Label err = new Label("");
+        d.cont.field(Integer.toString(getWindow()), s -> {
+            try {
+                final int w = Integer.parseInt(s);
+                if (w < 1)
+                    throw new NumberFormatException();
+                Core.settings.put(WINDOW_KEY, w);
+                err.setText("");
+            } catch (final NumberFormatException ex) {
+                err.setText("@sync-window-invalid");
+            }
+        }).row();
+        err.setColor(Color.red);
+        d.cont.add(err).row();
+
+        d.show();
+    }
+
+    /**
+     * How many file requests are in flight at once.
+     */
+    public static int getWindow() { return Core.settings == null ? DEFAULT_WINDOW : Math.max(1, Core.settings.getInt(WINDOW_KEY, DEFAULT_WINDOW)); }
 
     @Override
     public void sync(final ISyncContext c) throws IOException {
         if (c.isStatic())
             return;
         final BaseDialog d = c.getDialog();
+        final SyncMetrics.Data metrics = c.getMetrics();
+        metrics.phase(SyncMetrics.MANIFEST);
+
+        final Fi schemeDir = index.dir;
 
-        final Fi schemeDir = Core.settings.getDataDirectory().child("schematics/");
+        // Headless contexts, like the benchmarks, have no dialog.
+        final Label schematicsStatus = d == null ? null : new Label(Core.bundle.get("schematics") + ": 0 / ??? | ??? / ??? (???)");
+        if (d != null)
+            MainThread.post(() -> d.cont.add(schematicsStatus).row());
 
-        final Label schematicsStatus = new Label(Core.bundle.get("schematics") + ": 0 / ??? | ??? / ??? (???)");
-        Core.app.post(() -> d.cont.add(schematicsStatus).row());
+        final HashMap<String, FileIndex.Entry> local = index.refresh();
+        final HashSet<ByteBuffer> localHashes = new HashSet<>();
+        for (final FileIndex.Entry e : local.values())
+            localHashes.add(ByteBuffer.wrap(e.hash));
+
+        // Journal: EPOCH (8) + HEAD (8) + what we have from the peer's journal: EPOCH (8) + POSITION (8)
+        final UUID peer = c.getPeerId();
+        final long[] journal = index.journalHead(), known = peer == null ? null : index.getWatermark(peer);
+        c.writeLong(journal[0]);
+        c.writeLong(journal[1]);
+        c.writeLong(known == null ? 0 : known[0]);
+        c.writeLong(known == null ? -1 : known[1]);
+        final Merkle tree = new Merkle(local.values());
+        tree.write(c);
+        c.flush();
 
-        final Fi[] schematicsList = schemeDir.list();
-        int t = 0;
-        for (final Fi fi : schematicsList)
-            if (!fi.isDirectory())
-                t++;
+        final long peerEpoch = c.readLong(), peerHead = c.readLong(), seenEpoch = c.readLong(), seenPosition = c.readLong();
+        // Equal libraries stop here, otherwise only files from buckets that differ go into the manifest.
+        final boolean[] differs = tree.read(c);
+        if (differs == null) {
+            if (peer != null) {
+                index.setWatermark(peer, peerEpoch, peerHead);
+                index.save();
+            }
+            MainThread.text(schematicsStatus, () -> Core.bundle.get("schematics") + ": " + Core.bundle.get("sync-up-to-date"));
+            return;
+        }
+        // The peer has everything we changed before its watermark.
+        final HashSet<String> changed = index.changedSince(seenEpoch, seenPosition);
+        final ArrayList<FileIndex.Entry> manifest = new ArrayList<>();
+        for (final FileIndex.Entry e : local.values())
+            if (differs[Merkle.bucket(e.name)] && (changed == null || changed.contains(e.name)))
+                manifest.add(e);
 
-        c.writeInt(t);
-        for (final Fi fi : schematicsList)
-            if (!fi.isDirectory())
-                c.writeString(fi.name());
+        writeManifest(c, manifest);
         c.flush();
 
         final int totalSchematics = c.readInt();
-        Core.app.post(() -> schematicsStatus.setText(Core.bundle.get("schematics") + ": 0 / ??? | ??? / ??? (" + totalSchematics + ")"));
+        MainThread.text(schematicsStatus, () -> Core.bundle.get("schematics") + ": 0 / ??? | ??? / ??? (" + totalSchematics + ")");
 
         final ArrayList<String> names = new ArrayList<>();
-        sm:
-        for (int i = 0; i < totalSchematics; i++) {
-            final String n = c.readString();
-            if (n.contains("/") || n.contains("\\"))
-                continue;
-            for (final Fi f : schematicsList)
-                if (f.name().equals(n) || !n.endsWith(".msch")) {
-                    if (f.length() == 0) {
-                        f.delete();
-                        break;
-                    }
-                    continue sm;
-                }
-            names.add(n);
-        }
+        final ArrayList<FileIndex.Entry> echo = new ArrayList<>();
+        readManifest(c, totalSchematics, local, localHashes, names, echo);
+        // The peer never saw our copy of a name it listed if the watermark left it out, it needs it to request the copy that wins.
+        echo.removeIf(e -> changed == null || changed.contains(e.name));
+        writeManifest(c, echo);
+        c.flush();
+        readManifest(c, c.readInt(), local, localHashes, names, null);
 
         // Sync
+        metrics.phase(SyncMetrics.TRANSFER);
 
         final int syncTotalSchematics = names.size();
-        Core.app.post(() -> schematicsStatus.setText(Core.bundle.get("schematics") + ": 0 / ??? | 0 / " + syncTotalSchematics + " (" + totalSchematics + ") - Preparing ..."));
+        MainThread.text(schematicsStatus, () -> Core.bundle.get("schematics") + ": 0 / ??? | 0 / " + syncTotalSchematics + " (" + totalSchematics + ") - Preparing ...");
 
-        c.writeInt(names.size());
-        c.flush();
+        // Keep up to `window` requests in flight, the peer acknowledges received files cumulatively.
+        final int window = getWindow(), ackEvery = Math.max(1, window / 2);
 
-        for (final String n : names) {
+        c.writeInt(names.size());
+        int requested = 0;
+        for (; requested < names.size() && requested < window; requested++) {
             c.write(4);
-            c.writeString(n);
-            c.flush();
+            c.writeString(names.get(requested));
         }
+        c.flush();
 
         final int totalRemoteSchematics = c.readInt();
+        final Importer importer = new Importer(c, d, metrics);
         byte b;
-        int fileIndex = 0, fileIndex2 = 0;
+        int fileIndex = 0, fileIndex2 = 0, acked = 0;
         long nextUpdate = 0, current;
-        smn:
         while (true) {
             current = System.currentTimeMillis();
             if (current >= nextUpdate) {
                 nextUpdate = current + 100;
                 final int fi = fileIndex, fi2 = fileIndex2;
-                Core.app.post(() -> schematicsStatus.setText(Core.bundle.get("schematics") + ": " + fi2 + " / " + totalRemoteSchematics + " | " + fi + " / " + syncTotalSchematics + " (" + totalSchematics + ")"));
+                MainThread.text(schematicsStatus, () -> Core.bundle.get("schematics") + ": " + fi2 + " / " + totalRemoteSchematics + " | " + fi + " / " + syncTotalSchematics + " (" + totalSchematics + ")");
             }
 
             if (fileIndex2 >= totalRemoteSchematics && fileIndex >= syncTotalSchematics)
@@ -99,78 +187,237 @@ public class SchematicsData implements ISyncData {
             b = c.readByte();
 
             if (b == 4) {
-                final String n = c.readString();
-                for (final Fi f : schematicsList)
-                    if (f.name().equals(n)) {
-                        if (!f.isDirectory() && n.endsWith(".msch")) {
-                            c.write(3);
-                            c.sendFile(f);
-                            continue smn;
-                        } else
-                            break;
-                    }
-                c.write(2);
+                final FileIndex.Entry e = local.get(c.readString());
+                if (e != null && schemeDir.child(e.name).exists()) {
+                    c.write(3);
+                    c.sendFile(schemeDir.child(e.name));
+                } else
+                    c.write(2);
                 c.flush();
                 continue;
             }
 
+            if (b == 1) {
+                fileIndex2 = c.readInt();
+                continue;
+            }
+
             if (b == 3) {
                 if (names.size() > fileIndex) {
-                    final Fi f = schemeDir.child(names.get(fileIndex));
-                    try (final ByteArrayOutputStream o = new ByteArrayOutputStream()) {
+                    final Fi f = schemeDir.child(names.get(fileIndex)), tmp = FileUtil.temp(f);
+                    c.wrote(f);
+                    try (final OutputStream o = tmp.write(false)) {
                         c.readFile(o);
-                        final Object l = new Object();
-                        synchronized (l) {
-                            Core.app.post(() -> {
-                                try {
-                                    final Schematic s = Schematics.read(new ByteArrayInputStream(o.toByteArray()));
-                                    s.file = f;
-                                    if (s.hasSteamID())
-                                        s.removeSteamID();
-                                    if (f.exists())
-                                        f.delete();
-                                    Vars.schematics.add(s);
-                                } catch (final Throwable e) {
-                                    d.cont.add(Core.bundle.format("sync-file-error", f.name(), e.getMessage())).row();
-                                    Log.err("File: " + f.name());
-                                    Log.err(e);
-                                    try {
-                                        f.delete();
-                                    } catch (final Exception ex) {
-                                        Log.err(ex);
-                                    }
-                                }
-                                synchronized (l) {
-                                    l.notifyAll();
-                                }
-                            });
-                            l.wait();
-                        }
-                    } catch (final InterruptedException ex) {
-                        Log.err(ex);
+                    } catch (final IOException ex) {
+                        tmp.delete();
+                        throw ex;
                     }
+                    // Decoded on a worker, the next file is read meanwhile.
+                    importer.submit(f, tmp);
                 } else
                     c.readFile(null);
-                fileIndex++;
+            } else if (b != 2)
+                throw new IOException("Unknown packet code: " + b);
+
+            fileIndex++;
+            for (; requested < names.size() && requested - fileIndex < window; requested++) {
+                c.write(4);
+                c.writeString(names.get(requested));
+            }
+            if (fileIndex - acked >= ackEvery || fileIndex == names.size()) {
+                acked = fileIndex;
                 c.write(1);
-                c.flush();
-                continue;
+                c.writeInt(acked);
             }
+            c.flush();
+        }
+        // The last files may still be decoding, waiting for them is part of applying.
+        metrics.phase(SyncMetrics.APPLY);
+        importer.await();
+
+        // Everything the peer offered was handled, next time only its newer changes are needed. Failed files are offered again.
+        if (peer != null && !importer.failed()) {
+            index.setWatermark(peer, peerEpoch, peerHead);
+            index.save();
+        }
+
+        final int fi = fileIndex, fi2 = fileIndex2;
+        MainThread.text(schematicsStatus, () -> Core.bundle.get("schematics") + ": " + fi2 + " / " + totalRemoteSchematics + " | " + fi + " / " + syncTotalSchematics + " (" + totalSchematics + ")");
+    }
+
+    // Manifest: NAME + SIZE (8) + LAST_MODIFIED (8) + HASH (16)
+    private static void writeManifest(final ISyncContext c, final ArrayList<FileIndex.Entry> manifest) throws IOException {
+        c.writeInt(manifest.size());
+        for (final FileIndex.Entry e : manifest) {
+            c.writeString(e.name);
+            c.writeLong(e.size);
+            c.writeLong(e.lastModified);
+            c.write(e.hash);
+        }
+    }
 
-            if (b == 2) {
-                fileIndex++;
+    /**
+     * Adds the names to request, and to echo our entries whose copy wins.
+     */
+    private static void readManifest(final ISyncContext c, final int count, final HashMap<String, FileIndex.Entry> local, final HashSet<ByteBuffer> localHashes,
+                                     final ArrayList<String> names, final ArrayList<FileIndex.Entry> echo) throws IOException {
+        for (int i = 0; i < count; i++) {
+            final String n = c.readString();
+            final long size = c.readLong(), lastModified = c.readLong();
+            final byte[] h = c.readBuf(FileIndex.HASH_SIZE);
+            if (n.contains("/") || n.contains("\\") || !n.endsWith(".msch"))
+                continue;
+            final FileIndex.Entry e = local.get(n);
+            if (e == null) {
+                // The same schematic is already here under another name.
+                if (!localHashes.contains(ByteBuffer.wrap(h)))
+                    names.add(n);
                 continue;
             }
-
-            if (b == 1) {
-                fileIndex2++;
+            if (e.size == size && Arrays.equals(e.hash, h))
                 continue;
+            // Both sides make the same decision, so only the newer copy crosses the wire, the host wins a tie.
+            if (e.size == 0 || lastModified > e.lastModified || (lastModified == e.lastModified && !c.isHost()))
+                names.add(n);
+            else if (echo != null)
+                echo.add(e);
+        }
+    }
+
+    /**
+     * Received files are read and checked on {@link #decoders}, the main thread only adds the results, as many as fit in a frame.
+     */
+    private static class Importer {
+        private static class Decoded {
+            public final Fi file, tmp;
+            public final Schematic schematic;
+            /** The game's copy differs from the peer's, its Steam id was removed. */
+            public final boolean changed;
+            public final Throwable error;
+
+            public Decoded(final Fi file, final Fi tmp, final Schematic schematic, final boolean changed, final Throwable error) {
+                this.file = file;
+                this.tmp = tmp;
+                this.schematic = schematic;
+                this.changed = changed;
+                this.error = error;
+            }
+        }
+
+        public final ISyncContext c;
+        public final BaseDialog d;
+        public final SyncMetrics.Data metrics;
+        private final ConcurrentLinkedQueue<Decoded> ready = new ConcurrentLinkedQueue<>();
+        private int pending = 0;
+        private boolean failed = false;
+        /** Main thread only. */
+        private long lastAdd = 0;
+
+        public Importer(final ISyncContext c, final BaseDialog d, final SyncMetrics.Data metrics) {
+            this.c = c;
+            this.d = d;
+            this.metrics = metrics;
+        }
+
+        public void submit(final Fi f, final Fi tmp) {
+            synchronized (this) {
+                pending++;
             }
+            decoders.execute(() -> {
+                Schematic s = null;
+                boolean changed = false;
+                Throwable error = null;
+                try (final InputStream in = tmp.read()) {
+                    s = Schematics.read(in);
+                    s.file = f;
+                    if (changed = s.hasSteamID())
+                        s.removeSteamID();
+                } catch (final Throwable e) {
+                    error = e;
+                }
+                ready.add(new Decoded(f, tmp, s, changed, error));
+                MainThread.post(this, this::drain);
+            });
+        }
+
+        public synchronized boolean failed() { return failed; }
 
-            throw new IOException("Unknown packet code: " + b);
+        /**
+         * Waits until every submitted file is in the game.
+         */
+        public synchronized void await() throws InterruptedIOException {
+            try {
+                while (pending > 0)
+                    wait();
+            } catch (final InterruptedException ex) {
+                Log.err(ex);
+                throw new InterruptedIOException();
+            }
         }
 
-        final int fi = fileIndex, fi2 = fileIndex2;
-        Core.app.post(() -> schematicsStatus.setText(Core.bundle.get("schematics") + ": " + fi2 + " / " + totalRemoteSchematics + " | " + fi + " / " + syncTotalSchematics + " (" + totalSchematics + ")"));
+        /**
+         * One schematic at a time, {@link MainThread} decides how many fit in a frame.
+         */
+        private void drain() {
+            // Schematics.add names the file by the current millisecond.
+            if (System.currentTimeMillis() != lastAdd) {
+                final Decoded r = ready.poll();
+                if (r == null)
+                    return;
+                final long t = System.nanoTime();
+                apply(r);
+                metrics.add(SyncMetrics.APPLY, System.nanoTime() - t);
+                synchronized (this) {
+                    pending--;
+                    notifyAll();
+                }
+            }
+            if (!ready.isEmpty())
+                MainThread.post(this, this::drain);
+        }
+
+        private void apply(final Decoded r) {
+            final Fi f = r.file;
+            try {
+                if (r.error != null)
+                    throw r.error;
+                if (f.exists()) {
+                    final Schematic old = Vars.schematics.all().find(other -> f.equals(other.file));
+                    if (old != null)
+                        Vars.schematics.remove(old);
+                    if (f.exists())
+                        f.delete();
+                }
+                Vars.schematics.add(r.schematic);
+                lastAdd = System.currentTimeMillis();
+                // The game saved it under a name of its own, the peer's name and bytes keep the libraries equal for the next sync.
+                final Fi saved = r.schematic.file;
+                if (saved != null && !saved.equals(f)) {
+                    // Created and deleted by the sync, not a change to push back.
+                    c.wrote(saved);
+                    if (r.changed && saved.exists())
+                        FileUtil.replace(saved, f);
+                    else
+                        saved.delete();
+                }
+                if (!f.exists())
+                    FileUtil.replace(r.tmp, f);
+                r.schematic.file = f;
+            } catch (final Throwable e) {
+                synchronized (this) {
+                    failed = true;
+                }
+                if (d != null)
+                    d.cont.add(Core.bundle.format("sync-file-error", f.name(), e.getMessage())).row();
+                Log.err("File: " + f.name());
+                Log.err(e);
+                try {
+                    f.delete();
+                } catch (final Exception ex) {
+                    Log.err(ex);
+                }
+            }
+            r.tmp.delete();
+        }
     }
 }
\ No newline at end of file